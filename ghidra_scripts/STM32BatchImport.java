@@ -0,0 +1,251 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Imports every STM32 image in a directory, or listed in a manifest file, with the STM32
+//loader on a pool of worker threads and writes a summary of the results.
+//
+//Headless usage:
+//  analyzeHeadless <project dir> <project name> -postScript STM32BatchImport.java
+//      <directory|manifest> [threads] [timeout seconds] [project folder]
+//
+//A manifest is a text file with one image path per line, blank lines and lines starting
+//with '#' are skipped. Each image is loaded into its own program by one worker, programs
+//are saved into the project one at a time as they finish, and a tab separated summary is
+//written next to the input as stm32-import-summary.tsv.
+//@category STM32
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ghidra.app.script.GhidraScript;
+import ghidra.app.util.Option;
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.app.util.bin.RandomAccessByteProvider;
+import ghidra.app.util.importer.MessageLog;
+import ghidra.app.util.opinion.LoadSpec;
+import ghidra.framework.model.DomainFile;
+import ghidra.framework.model.DomainFolder;
+import ghidra.framework.model.DomainObject;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+import ghidra.util.task.TaskMonitorAdapter;
+import stm32.stm32Loader;
+
+public class STM32BatchImport extends GhidraScript {
+
+	private static final String SUMMARY_NAME = "stm32-import-summary.tsv";
+	private static final int DEFAULT_TIMEOUT_SECONDS = 300;
+
+	private enum Status {
+		IMPORTED, REJECTED, TIMEOUT, CANCELLED, FAILED
+	}
+
+	private static class Result {
+		final Path image;
+		final Status status;
+		final long loadMillis;
+		final long saveMillis;
+		final String detail;
+
+		Result(Path image, Status status, long loadMillis, long saveMillis, String detail) {
+			this.image = image;
+			this.status = status;
+			this.loadMillis = loadMillis;
+			this.saveMillis = saveMillis;
+			this.detail = detail;
+		}
+	}
+
+	// The project database takes one writer at a time, workers queue up here to save
+	private final Object saveLock = new Object();
+
+	@Override
+	protected void run() throws Exception {
+		String[] args = getScriptArgs();
+		File input = args.length > 0 ? new File(args[0])
+				: askDirectory("Directory of STM32 images", "Import");
+		int threads = args.length > 1 ? Integer.parseInt(args[1])
+				: Runtime.getRuntime().availableProcessors();
+		int timeout = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TIMEOUT_SECONDS;
+		DomainFolder folder = getProjectRootFolder();
+		if (args.length > 3) {
+			folder = getOrCreateFolder(folder, args[3]);
+		}
+
+		List<Path> images = listImages(input.toPath());
+		println("Importing " + images.size() + " images on " + threads + " threads");
+
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(threads, 1));
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		List<Future<Result>> futures = new ArrayList<>();
+		DomainFolder destination = folder;
+		for (Path image : images) {
+			futures.add(workers.submit(() -> importImage(image, destination, timer, timeout)));
+		}
+		workers.shutdown();
+
+		List<Result> results = new ArrayList<>();
+		try {
+			for (Future<Result> future : futures) {
+				monitor.checkCanceled();
+				Result result = future.get();
+				results.add(result);
+				println(result.status + " " + result.image + " (" + result.loadMillis + " ms)");
+			}
+		}
+		catch (CancelledException e) {
+			workers.shutdownNow();
+			throw e;
+		}
+		finally {
+			timer.shutdownNow();
+		}
+
+		Path summary = (Files.isDirectory(input.toPath()) ? input.toPath()
+				: input.toPath().toAbsolutePath().getParent()).resolve(SUMMARY_NAME);
+		writeSummary(summary, results);
+		println("Summary written to " + summary);
+	}
+
+	private Result importImage(Path image, DomainFolder folder, ScheduledExecutorService timer,
+			int timeout) {
+		TaskMonitor workerMonitor = new TaskMonitorAdapter(true);
+		ScheduledFuture<?> deadline =
+			timer.schedule(workerMonitor::cancel, timeout, TimeUnit.SECONDS);
+		long start = System.nanoTime();
+		Status status;
+		String detail = "";
+		long loadMillis = 0;
+		long saveMillis = 0;
+		boolean loaded = false;
+		try (ByteProvider provider = new RandomAccessByteProvider(image.toFile())) {
+			stm32Loader loader = new stm32Loader();
+			Collection<LoadSpec> loadSpecs = loader.findSupportedLoadSpecs(provider);
+			if (loadSpecs.isEmpty()) {
+				return new Result(image, Status.REJECTED, elapsed(start), 0,
+					"no vector table");
+			}
+			LoadSpec loadSpec = loadSpecs.iterator().next();
+			List<Option> options = loader.getDefaultOptions(provider, loadSpec, null, false);
+			MessageLog log = new MessageLog();
+			List<DomainObject> programs = loader.load(provider, image.getFileName().toString(),
+				null, loadSpec, options, log, this, workerMonitor);
+			// The timeout is for the load, waiting for the project writer doesn't count
+			deadline.cancel(false);
+			loaded = true;
+			loadMillis = elapsed(start);
+			try {
+				long saveStart = System.nanoTime();
+				for (DomainObject program : programs) {
+					save(folder, program);
+				}
+				saveMillis = elapsed(saveStart);
+			}
+			finally {
+				for (DomainObject program : programs) {
+					program.release(this);
+				}
+			}
+			status = Status.IMPORTED;
+		}
+		catch (CancelledException e) {
+			status = !loaded && workerMonitor.isCancelled() ? Status.TIMEOUT
+					: Status.CANCELLED;
+		}
+		catch (Exception e) {
+			status = Status.FAILED;
+			detail = String.valueOf(e.getMessage());
+		}
+		finally {
+			deadline.cancel(false);
+		}
+		return new Result(image, status, loadMillis == 0 ? elapsed(start) : loadMillis,
+			saveMillis, detail);
+	}
+
+	/**
+	 * Save a loaded program into the project. Only the script's own monitor can cancel it,
+	 * and a file left behind by a failed or cancelled save is deleted.
+	 */
+	private void save(DomainFolder folder, DomainObject program) throws Exception {
+		synchronized (saveLock) {
+			String name = program.getName();
+			for (int i = 1; folder.getFile(name) != null; i++) {
+				name = program.getName() + "." + i;
+			}
+			try {
+				folder.createFile(name, program, monitor);
+			}
+			catch (Exception e) {
+				DomainFile partial = folder.getFile(name);
+				if (partial != null) {
+					partial.delete();
+				}
+				throw e;
+			}
+		}
+	}
+
+	private static List<Path> listImages(Path input) throws IOException {
+		if (Files.isDirectory(input)) {
+			try (Stream<Path> files = Files.walk(input)) {
+				return files.filter(Files::isRegularFile)
+						.filter(p -> !p.getFileName().toString().equals(SUMMARY_NAME))
+						.sorted()
+						.collect(Collectors.toList());
+			}
+		}
+		Path base = input.toAbsolutePath().getParent();
+		List<Path> images = new ArrayList<>();
+		for (String line : Files.readAllLines(input)) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				images.add(base.resolve(line));
+			}
+		}
+		return images;
+	}
+
+	private static DomainFolder getOrCreateFolder(DomainFolder root, String path)
+			throws Exception {
+		DomainFolder folder = root;
+		for (String name : path.split("/")) {
+			if (name.isEmpty()) {
+				continue;
+			}
+			DomainFolder child = folder.getFolder(name);
+			folder = child != null ? child : folder.createFolder(name);
+		}
+		return folder;
+	}
+
+	private static void writeSummary(Path summary, List<Result> results) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(summary))) {
+			out.println("image\tstatus\tload_ms\tsave_ms\tdetail");
+			for (Result result : results) {
+				out.println(result.image + "\t" + result.status + "\t" + result.loadMillis +
+					"\t" + result.saveMillis + "\t" + result.detail.replace('\t', ' '));
+			}
+		}
+	}
+
+	private static long elapsed(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+}
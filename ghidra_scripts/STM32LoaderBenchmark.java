@@ -0,0 +1,306 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Benchmarks the STM32 loader against generated firmware images and writes the results as
+//JSON. For every combination of flash size and erased ratio the vector table probe is
+//timed over many calls, and the full load is run a few times in memory, with and without
+//skipping erased sectors, with the per-phase load metrics collected from each run.
+//
+//Headless usage:
+//  analyzeHeadless <project dir> <project name> -postScript STM32LoaderBenchmark.java
+//      <output.json> [iterations] [family] [literals per 1K]
+//@category STM32
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import ghidra.app.script.GhidraScript;
+import ghidra.app.util.Option;
+import ghidra.app.util.bin.ByteArrayProvider;
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.app.util.importer.MessageLog;
+import ghidra.app.util.opinion.LoadSpec;
+import ghidra.framework.model.DomainObject;
+import stm32.*;
+
+public class STM32LoaderBenchmark extends GhidraScript {
+
+	private static final int[] FLASH_SIZES = { 0x4000, 0x40000, 0x100000, 0x200000 };
+	private static final double[] ERASED_RATIOS = { 0.0, 0.5, 0.9 };
+	private static final int PROBE_CALLS = 10000;
+	private static final long SEED = 0x5354324DL;
+
+	@Override
+	protected void run() throws Exception {
+		String[] args = getScriptArgs();
+		File output = args.length > 0 ? new File(args[0])
+				: askFile("Benchmark results", "Save");
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		STM32Device device =
+			STM32DeviceCatalog.find(args.length > 2 ? args[2] : STM32DeviceCatalog.DEFAULT_FAMILY);
+		int literalsPerPool = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		File metricsDir = Files.createTempDirectory("stm32-bench").toFile();
+
+		long[] literals = new long[0];
+		try {
+			literals = SyntheticImage.getRegisterAddresses(device.getFamily().getPeripherals());
+		}
+		catch (IOException e) {
+			println("No peripheral map for " + device.getFamily() + ", using default literals");
+		}
+
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"device\": \"").append(device.getPartNumber()).append("\",\n");
+		json.append("  \"iterations\": ").append(iterations).append(",\n");
+		json.append("  \"literals_per_1k\": ").append(literalsPerPool).append(",\n");
+		json.append("  \"results\": [");
+		String sep = "";
+		for (int flashSize : FLASH_SIZES) {
+			for (double erasedRatio : ERASED_RATIOS) {
+				monitor.checkCanceled();
+				SyntheticImage generator =
+					new SyntheticImage(flashSize, erasedRatio, literalsPerPool, SEED);
+				generator.setLiterals(literals);
+				byte[] image = generator.generate(device.getFamily());
+				String name = String.format("synthetic_%x_%02d", flashSize,
+					(int) (erasedRatio * 100));
+
+				long probeNanos = timeProbe(image);
+				println(String.format("%s: %d ns per probe", name, probeNanos));
+				// Erased sectors only make a difference when the loader is told to skip them
+				for (boolean skipErased : new boolean[] { false, true }) {
+					json.append(sep).append("\n    {\n");
+					json.append("      \"image\": \"").append(name).append("\",\n");
+					json.append("      \"flash_size\": ").append(flashSize).append(",\n");
+					json.append("      \"erased_ratio\": ").append(erasedRatio).append(",\n");
+					json.append("      \"skip_erased\": ").append(skipErased).append(",\n");
+					json.append("      \"probe_ns\": ").append(probeNanos).append(",\n");
+					json.append("      \"loads\": [");
+					for (int i = 0; i <= iterations; i++) {
+						monitor.checkCanceled();
+						File metrics = new File(metricsDir, name + ".metrics.json");
+						long wall = timeLoad(image, name, skipErased, metricsDir);
+						// The first load warms up the JIT and the peripheral map cache
+						if (i == 0) {
+							continue;
+						}
+						json.append(i == 1 ? "" : ",").append("\n        {\"wall_ms\": ").append(
+							wall).append(", \"metrics\": ");
+						json.append(new String(Files.readAllBytes(metrics.toPath()),
+							StandardCharsets.UTF_8).trim().replace("\n", "\n        "));
+						json.append("}");
+					}
+					json.append("\n      ]\n    }");
+					sep = ",";
+				}
+			}
+		}
+		json.append("\n  ]\n}\n");
+		Files.write(output.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+		println("Results written to " + output);
+	}
+
+	/**
+	 * @return the mean time of one findSupportedLoadSpecs call in nanoseconds
+	 */
+	private long timeProbe(byte[] image) throws Exception {
+		stm32Loader loader = new stm32Loader();
+		ByteProvider provider = new ByteArrayProvider(image);
+		int accepted = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < PROBE_CALLS; i++) {
+			accepted += loader.findSupportedLoadSpecs(provider).size();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (accepted != PROBE_CALLS) {
+			printerr("Synthetic image was not accepted by the loader");
+		}
+		return elapsed / PROBE_CALLS;
+	}
+
+	/**
+	 * Load the image into a program that is never saved, with metrics written to
+	 * {@code metricsDir}.
+	 *
+	 * @param skipErased whether erased sectors are left out of the flash block
+	 * @return the wall time of the load in milliseconds
+	 */
+	private long timeLoad(byte[] image, String name, boolean skipErased, File metricsDir)
+			throws Exception {
+		stm32Loader loader = new stm32Loader();
+		ByteProvider provider = new ByteArrayProvider(name, image);
+		LoadSpec loadSpec = loader.findSupportedLoadSpecs(provider).iterator().next();
+		List<Option> options = loader.getDefaultOptions(provider, loadSpec, null, false);
+		for (Option option : options) {
+			if (option.getName().equals(stm32Loader.OPTION_METRICS_FILE)) {
+				option.setValue(metricsDir.getAbsolutePath());
+			}
+			else if (option.getName().equals(stm32Loader.OPTION_SKIP_ERASED)) {
+				option.setValue(skipErased);
+			}
+			// Every load after the first would be a cache hit, and write to the user's cache
+			else if (option.getName().equals(stm32Loader.OPTION_PLAN_CACHE)) {
+				option.setValue(false);
+			}
+		}
+		long start = System.nanoTime();
+		List<DomainObject> programs = loader.load(provider, name, null, loadSpec, options,
+			new MessageLog(), this, monitor);
+		long wall = (System.nanoTime() - start) / 1000000;
+		for (DomainObject program : programs) {
+			program.release(this);
+		}
+		return wall;
+	}
+
+	/**
+	 * Generates flash images that look enough like STM32 firmware to exercise every stage of
+	 * the loader: a valid vector table, programmed pages of random code with peripheral
+	 * literal pools, and fully erased pages. The same seed always gives the same image, so
+	 * benchmark runs can be compared.
+	 */
+	private static class SyntheticImage {
+
+		static final int MIN_FLASH_SIZE = 0x4000;
+		static final int MAX_FLASH_SIZE = 0x200000;
+
+		// Erased pages are chosen at this granularity, the smallest F2/F4 sector
+		private static final int PAGE_SIZE = 0x4000;
+		private static final int POOL_SPACING = 0x400;
+
+		// RCC, GPIOA, USART1, TIM2 and SPI1 registers, used when no peripheral map is given
+		private static final long[] DEFAULT_LITERALS = { 0x40023830L, 0x40020014L, 0x40011004L,
+			0x40000024L, 0x4001300CL };
+
+		private final int flashSize;
+		private final double erasedRatio;
+		private final int literalsPerPool;
+		private final long seed;
+		private long[] literals = DEFAULT_LITERALS;
+
+		/**
+		 * @param flashSize image size, between {@link #MIN_FLASH_SIZE} and {@link #MAX_FLASH_SIZE}
+		 * @param erasedRatio fraction of the pages after the first that are left erased
+		 * @param literalsPerPool peripheral literals in each 1K of programmed flash
+		 * @param seed random seed for the code bytes and the choice of erased pages
+		 */
+		SyntheticImage(int flashSize, double erasedRatio, int literalsPerPool, long seed) {
+			if (flashSize < MIN_FLASH_SIZE || flashSize > MAX_FLASH_SIZE) {
+				throw new IllegalArgumentException("Flash size must be between 16K and 2M");
+			}
+			this.flashSize = flashSize & ~3;
+			this.erasedRatio = Math.max(0, Math.min(erasedRatio, 1));
+			this.literalsPerPool = Math.max(0, Math.min(literalsPerPool, POOL_SPACING / 4));
+			this.seed = seed;
+		}
+
+		/**
+		 * Draw the literal pools from these addresses instead of a few common F2 registers.
+		 */
+		void setLiterals(long[] literals) {
+			if (literals.length > 0) {
+				this.literals = literals.clone();
+			}
+		}
+
+		/**
+		 * Collect every register address of a peripheral map, for {@link #setLiterals(long[])}.
+		 */
+		static long[] getRegisterAddresses(STM32PeripheralDatabase db) {
+			STM32RegisterIndex index = new STM32RegisterIndex(db);
+			long[] addresses = new long[index.getRegisterEntryCount()];
+			for (int i = 0; i < addresses.length; i++) {
+				addresses[i] = index.getRegisterAddress(i);
+			}
+			return addresses;
+		}
+
+		/**
+		 * @param family family whose SRAM holds the initial stack and whose interrupt count
+		 * sizes the vector table
+		 */
+		byte[] generate(STM32Family family) {
+			Random random = new Random(seed);
+			byte[] image = new byte[flashSize];
+			Arrays.fill(image, (byte) 0xFF);
+
+			int pages = (flashSize + PAGE_SIZE - 1) / PAGE_SIZE;
+			boolean[] erased = new boolean[pages];
+			int toErase = (int) Math.round((pages - 1) * erasedRatio);
+			for (int erasedCount = 0; erasedCount < toErase;) {
+				int page = 1 + random.nextInt(pages - 1);
+				if (!erased[page]) {
+					erased[page] = true;
+					erasedCount++;
+				}
+			}
+
+			for (int page = 0; page < pages; page++) {
+				if (erased[page]) {
+					continue;
+				}
+				int start = page * PAGE_SIZE;
+				int end = Math.min(start + PAGE_SIZE, flashSize);
+				byte[] code = new byte[end - start];
+				random.nextBytes(code);
+				System.arraycopy(code, 0, image, start, code.length);
+
+				// Literal pools sit at the end of each 1K, like after a run of small functions
+				for (int pool = start + POOL_SPACING; pool <= end; pool += POOL_SPACING) {
+					for (int i = 1; i <= literalsPerPool; i++) {
+						putWord(image, pool - 4 * i, literals[random.nextInt(literals.length)]);
+					}
+				}
+			}
+
+			writeVectorTable(image, family);
+			return image;
+		}
+
+		private static void writeVectorTable(byte[] image, STM32Family family) {
+			int vectors = 16 + family.getIrqCount();
+			// Handlers start right after the table, all device interrupts share one handler
+			long handler = 0x08000000L + vectors * 4 + 1;
+			long defaultHandler = handler + 0x40;
+			long sp = family.getRegions().get(0).addr + 0x1000;
+
+			putWord(image, 0, sp);
+			for (int slot = 1; slot < vectors; slot++) {
+				long value;
+				if (STM32VectorTable.isReserved(slot) ||
+					(family.isCortexM0() && (slot == 4 || slot == 5 || slot == 6 || slot == 12))) {
+					value = 0;
+				}
+				else if (slot < 16) {
+					value = handler + (slot - 1) * 4;
+				}
+				else {
+					value = defaultHandler;
+				}
+				putWord(image, slot * 4, value);
+			}
+		}
+
+		private static void putWord(byte[] image, int offset, long value) {
+			image[offset] = (byte) value;
+			image[offset + 1] = (byte) (value >> 8);
+			image[offset + 2] = (byte) (value >> 16);
+			image[offset + 3] = (byte) (value >> 24);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+//Lists the functions that read and write STM32 peripheral registers, from the peripheral
+//access map stored with the program. The map is built first if the program has none.
+//
+//Registers are given by label, USART2->DR, USART2.DR and USART2_DR all name the same
+//register, case is ignored and '*' matches anything, so USART*_SR lists the status
+//registers of every USART.
+//
+//Headless usage:
+//  analyzeHeadless <project dir> <project name> -process <program> -postScript
+//      STM32PeripheralAccess.java <register>...
+//@category STM32
+
+import java.io.IOException;
+
+import ghidra.app.script.GhidraScript;
+import ghidra.program.model.listing.Function;
+import stm32.*;
+
+public class STM32PeripheralAccess extends GhidraScript {
+
+	@Override
+	protected void run() throws Exception {
+		STM32Device device = STM32RegisterLabeler.getDevice(currentProgram);
+		if (device == null) {
+			printerr(currentProgram.getName() + " was not loaded with the STM32 loader");
+			return;
+		}
+		STM32RegisterIndex index;
+		try {
+			index = new STM32RegisterIndex(device.getFamily().getPeripherals());
+		}
+		catch (IOException e) {
+			printerr("No peripheral map for " + device.getFamily() + ": " + e.getMessage());
+			return;
+		}
+
+		String[] names = getScriptArgs();
+		if (names.length == 0) {
+			names = askString("Peripheral access", "Registers (e.g. USART2->DR OTG_FS_GINTSTS)")
+					.trim().split("[\\s,]+");
+		}
+
+		long start = System.nanoTime();
+		STM32PeripheralAccessMap map = STM32PeripheralAccessMap.load(currentProgram, index);
+		if (map == null) {
+			println("Building the peripheral access map...");
+			map = STM32PeripheralAccessMap.refresh(currentProgram, index, null, monitor);
+			println(String.format("Built in %d ms", (System.nanoTime() - start) / 1000000));
+			start = System.nanoTime();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			long[] registers = STM32PeripheralAccessMap.findRegisters(index, name);
+			if (registers.length == 0) {
+				sb.append(name).append(": no such register\n");
+			}
+			for (long register : registers) {
+				sb.append(String.format("%s @ 0x%08x\n",
+					index.getRegisterLabel(index.findRegister(register)), register));
+				sb.append("  read by:    ").append(getNames(map.getReaders(register))).append('\n');
+				sb.append("  written by: ").append(getNames(map.getWriters(register))).append('\n');
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		println(sb.toString());
+		println(String.format("Queried in %.2f ms", elapsed / 1e6));
+	}
+
+	private String getNames(long[] entryPoints) {
+		if (entryPoints.length == 0) {
+			return "-";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (long entryPoint : entryPoints) {
+			Function function = getFunctionAt(toAddr(entryPoint));
+			sb.append(sb.length() == 0 ? "" : ", ");
+			sb.append(function != null ? function.getName() : "?").append(
+				String.format(" (0x%08x)", entryPoint));
+		}
+		return sb.toString();
+	}
+}
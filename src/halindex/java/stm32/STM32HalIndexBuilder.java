@@ -0,0 +1,340 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates the {@link STM32HalIndex} from compiled HAL, LL and CMSIS libraries. It runs
+ * outside Ghidra, from the {@code buildHalIndex} Gradle task, and lives in the build-only
+ * {@code halIndex} source set so it is not part of the extension:
+ *
+ * <pre>
+ *   STM32HalIndexBuilder &lt;output.idx&gt; &lt;library dir&gt;...
+ * </pre>
+ *
+ * Each library directory is one library version, for example a build of
+ * STM32F4xx_HAL_Driver 1.7.13, and its name is recorded with the functions found in it.
+ * Every Thumb function in the ELF objects, archives and linked images below it is hashed,
+ * and the C headers below it supply the prototypes. Prototypes are reduced to built-in C
+ * types since the HAL's own types are not known in the program the index is applied to:
+ * pointers to them become {@code void *} and the enums they pass by value become
+ * {@code int}.
+ */
+public class STM32HalIndexBuilder {
+
+	private static final int EM_ARM = 40;
+	private static final int SHT_PROGBITS = 1;
+	private static final int SHT_SYMTAB = 2;
+	private static final int SHF_EXECINSTR = 4;
+	private static final int STT_FUNC = 2;
+	private static final int SHN_LORESERVE = 0xff00;
+
+	private static final Pattern PROTOTYPE =
+		Pattern.compile("([\\w\\s\\*]*?)\\b(\\w+)\\s*\\(([^()]*(?:\\([^()]*\\)[^()]*)*)\\)");
+	private static final Pattern FUNCTION_POINTER = Pattern.compile("\\(\\s*\\*\\s*(\\w+)");
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_]\\w*");
+
+	// Statements in inline function bodies that look like declarations
+	private static final Set<String> STATEMENT_KEYWORDS = new HashSet<>(Arrays.asList(
+		"typedef", "return", "else", "do", "case", "goto", "sizeof"));
+	private static final Set<String> QUALIFIERS = new HashSet<>(Arrays.asList("static",
+		"inline", "extern", "const", "volatile", "register", "struct", "enum", "union"));
+	private static final Map<String, String> BUILTIN_TYPES = new HashMap<>();
+	static {
+		for (String word : new String[] { "void", "char", "short", "int", "long", "signed",
+			"unsigned", "float", "double" }) {
+			BUILTIN_TYPES.put(word, word);
+		}
+		BUILTIN_TYPES.put("uint8_t", "unsigned char");
+		BUILTIN_TYPES.put("int8_t", "signed char");
+		BUILTIN_TYPES.put("uint16_t", "unsigned short");
+		BUILTIN_TYPES.put("int16_t", "short");
+		BUILTIN_TYPES.put("uint32_t", "unsigned int");
+		BUILTIN_TYPES.put("int32_t", "int");
+		BUILTIN_TYPES.put("uint64_t", "unsigned long long");
+		BUILTIN_TYPES.put("int64_t", "long long");
+		BUILTIN_TYPES.put("size_t", "unsigned int");
+		BUILTIN_TYPES.put("uintptr_t", "unsigned int");
+		BUILTIN_TYPES.put("bool", "unsigned char");
+		BUILTIN_TYPES.put("_Bool", "unsigned char");
+	}
+
+	private final List<STM32HalIndex.Entry> entries = new ArrayList<>();
+	private final Map<String, String> allPrototypes = new HashMap<>();
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: STM32HalIndexBuilder <output.idx> <library dir>...");
+			System.exit(1);
+		}
+		STM32HalIndexBuilder builder = new STM32HalIndexBuilder();
+		for (int i = 1; i < args.length; i++) {
+			builder.addLibrary(Paths.get(args[i]));
+		}
+		File output = new File(args[0]);
+		if (output.getParentFile() != null) {
+			output.getParentFile().mkdirs();
+		}
+		try (OutputStream out = new FileOutputStream(output)) {
+			builder.write(out);
+		}
+		System.out.println(String.format("Wrote %d functions to %s", builder.entries.size(),
+			output));
+	}
+
+	/**
+	 * Hash the functions of every object, archive and image below {@code dir}.
+	 */
+	public void addLibrary(Path dir) throws IOException {
+		String library = dir.getFileName().toString();
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		Map<String, String> prototypes = new HashMap<>();
+		for (Path file : files) {
+			if (file.toString().endsWith(".h")) {
+				readPrototypes(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1),
+					prototypes);
+			}
+		}
+		prototypes.forEach(allPrototypes::putIfAbsent);
+
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			if (name.endsWith(".a")) {
+				addArchive(Files.readAllBytes(file), library, prototypes);
+			}
+			else if (name.endsWith(".o") || name.endsWith(".elf") || name.endsWith(".axf")) {
+				addElf(Files.readAllBytes(file), library, prototypes);
+			}
+		}
+	}
+
+	public void write(OutputStream out) throws IOException {
+		STM32HalIndex.write(entries, out);
+	}
+
+	private void addArchive(byte[] archive, String library, Map<String, String> prototypes) {
+		if (archive.length < 8 ||
+			!new String(archive, 0, 8, StandardCharsets.US_ASCII).equals("!<arch>\n")) {
+			return;
+		}
+		int offset = 8;
+		while (offset + 60 <= archive.length) {
+			String name = new String(archive, offset, 16, StandardCharsets.US_ASCII).trim();
+			long size = Long.parseLong(
+				new String(archive, offset + 48, 10, StandardCharsets.US_ASCII).trim());
+			int start = offset + 60;
+			if (start + size > archive.length) {
+				break;
+			}
+			// "/" is the symbol table and "//" the long name table
+			if (!name.equals("/") && !name.equals("//")) {
+				addElf(Arrays.copyOfRange(archive, start, (int) (start + size)), library,
+					prototypes);
+			}
+			offset = (int) (start + size + (size & 1));
+		}
+	}
+
+	private void addElf(byte[] elf, String library, Map<String, String> prototypes) {
+		// 32-bit little endian ARM only
+		if (elf.length < 52 || elf[0] != 0x7f || elf[1] != 'E' || elf[2] != 'L' ||
+			elf[3] != 'F' || elf[4] != 1 || elf[5] != 1 || getShort(elf, 18) != EM_ARM) {
+			return;
+		}
+		int shoff = getInt(elf, 0x20);
+		int shentsize = getShort(elf, 0x2e);
+		int shnum = getShort(elf, 0x30);
+		if (shoff <= 0 || shentsize < 40 || shoff + (long) shnum * shentsize > elf.length) {
+			return;
+		}
+		for (int s = 0; s < shnum; s++) {
+			int sh = shoff + s * shentsize;
+			if (getInt(elf, sh + 4) != SHT_SYMTAB) {
+				continue;
+			}
+			int strtab = shoff + getInt(elf, sh + 24) * shentsize;
+			int symOffset = getInt(elf, sh + 16);
+			int symSize = getInt(elf, sh + 20);
+			for (int sym = symOffset; sym + 16 <= symOffset + symSize &&
+				sym + 16 <= elf.length; sym += 16) {
+				int value = getInt(elf, sym + 4);
+				int size = getInt(elf, sym + 8);
+				int shndx = getShort(elf, sym + 14);
+				// Thumb functions have bit 0 of their value set
+				if ((elf[sym + 12] & 0xf) != STT_FUNC || (value & 1) == 0 ||
+					size < STM32HalHash.PREFIX_LENGTH || shndx == 0 || shndx >= SHN_LORESERVE ||
+					shndx >= shnum) {
+					continue;
+				}
+				int code = shoff + shndx * shentsize;
+				if (getInt(elf, code + 4) != SHT_PROGBITS ||
+					(getInt(elf, code + 8) & SHF_EXECINSTR) == 0) {
+					continue;
+				}
+				long address = value & ~1L & 0xffffffffL;
+				long sectionAddress = getInt(elf, code + 12) & 0xffffffffL;
+				long offset = getInt(elf, code + 16) + address - sectionAddress;
+				int sectionEnd = getInt(elf, code + 16) + getInt(elf, code + 20);
+				if (offset < 0 || offset + size > sectionEnd || sectionEnd > elf.length) {
+					continue;
+				}
+				// The hash may read one instruction past the prefix, never past the section
+				byte[] bytes = Arrays.copyOfRange(elf, (int) offset, sectionEnd);
+				String name = getString(elf, getInt(elf, strtab + 16) + getInt(elf, sym));
+				entries.add(new STM32HalIndex.Entry(
+					STM32HalHash.prefixHash(bytes, 0, address),
+					STM32HalHash.hash(bytes, 0, size, address), size, name,
+					prototypes.getOrDefault(name, allPrototypes.get(name)), library));
+			}
+		}
+	}
+
+	/**
+	 * Collect the prototypes declared in a header, keyed by function name.
+	 */
+	static void readPrototypes(String header, Map<String, String> prototypes) {
+		String code = header.replaceAll("(?s)/\\*.*?\\*/", " ").replaceAll("//[^\n]*", " ")
+				.replaceAll("(?m)^\\s*#.*$", " ");
+		for (String statement : code.split("[;{}]")) {
+			Matcher m = PROTOTYPE.matcher(statement.replaceAll("\\s+", " ").trim());
+			if (!m.matches() || m.group(1).trim().isEmpty() ||
+				!Collections.disjoint(getWords(m.group(1)), STATEMENT_KEYWORDS)) {
+				continue;
+			}
+			String name = m.group(2);
+			String prototype = toBuiltinType(m.group(1)) + " " + name + "(" +
+				toBuiltinParameters(m.group(3)) + ");";
+			prototypes.putIfAbsent(name, prototype);
+		}
+	}
+
+	private static String toBuiltinParameters(String parameters) {
+		List<String> list = new ArrayList<>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i <= parameters.length(); i++) {
+			char c = i < parameters.length() ? parameters.charAt(i) : ',';
+			if (c == '(') {
+				depth++;
+			}
+			else if (c == ')') {
+				depth--;
+			}
+			else if (c == ',' && depth == 0) {
+				list.add(parameters.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		if (list.size() == 1 && (list.get(0).isEmpty() || list.get(0).equals("void"))) {
+			return "void";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < list.size(); i++) {
+			String parameter = list.get(i);
+			sb.append(i == 0 ? "" : ", ");
+			if (parameter.equals("...")) {
+				sb.append(parameter);
+				continue;
+			}
+			Matcher pointer = FUNCTION_POINTER.matcher(parameter);
+			if (pointer.find()) {
+				sb.append("void * ").append(pointer.group(1));
+				continue;
+			}
+			// Arrays are passed as pointers
+			String type = parameter.replaceAll("\\[[^\\]]*\\]", "").trim();
+			if (parameter.contains("[")) {
+				type = type.replaceAll("(\\w+)$", "* $1");
+			}
+			List<String> words = getWords(type);
+			String name = "param_" + (i + 1);
+			String last = words.isEmpty() ? null : words.get(words.size() - 1);
+			if (words.size() > 1 && !BUILTIN_TYPES.containsKey(last) &&
+				!QUALIFIERS.contains(last)) {
+				name = last;
+				type = type.substring(0, type.lastIndexOf(last));
+			}
+			sb.append(toBuiltinType(type)).append(' ').append(name);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Spell a type with built-in C types only.
+	 */
+	static String toBuiltinType(String type) {
+		StringBuilder base = new StringBuilder();
+		boolean unknown = false;
+		for (String word : getWords(type)) {
+			// Attribute macros such as __weak and __IO are dropped along with the qualifiers
+			if (QUALIFIERS.contains(word) || word.startsWith("__")) {
+				continue;
+			}
+			String builtin = BUILTIN_TYPES.get(word);
+			if (builtin == null) {
+				unknown = true;
+				break;
+			}
+			base.append(base.length() == 0 ? "" : " ").append(builtin);
+		}
+		int pointers = type.length() - type.replace("*", "").length();
+		if (unknown || base.length() == 0) {
+			base.setLength(0);
+			base.append(pointers > 0 ? "void" : "int");
+		}
+		for (int i = 0; i < pointers; i++) {
+			base.append(" *");
+		}
+		return base.toString();
+	}
+
+	private static List<String> getWords(String s) {
+		List<String> words = new ArrayList<>();
+		Matcher m = IDENTIFIER.matcher(s);
+		while (m.find()) {
+			words.add(m.group());
+		}
+		return words;
+	}
+
+	private static int getShort(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 |
+			(b[offset + 3] & 0xff) << 24;
+	}
+
+	private static String getString(byte[] b, int offset) {
+		int end = offset;
+		while (end < b.length && b[end] != 0) {
+			end++;
+		}
+		return new String(b, offset, end - offset, StandardCharsets.US_ASCII);
+	}
+}
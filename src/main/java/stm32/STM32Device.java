@@ -0,0 +1,56 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+/**
+ * A part number within an {@link STM32Family}, with the flash and main SRAM sizes of its
+ * largest package.
+ */
+public class STM32Device {
+
+	private final String partNumber;
+	private final STM32Family family;
+	private final int flashSize;
+	private final int sramSize;
+
+	STM32Device(String partNumber, STM32Family family, int flashSize, int sramSize) {
+		this.partNumber = partNumber;
+		this.family = family;
+		this.flashSize = flashSize;
+		this.sramSize = sramSize;
+	}
+
+	public String getPartNumber() {
+		return partNumber;
+	}
+
+	public STM32Family getFamily() {
+		return family;
+	}
+
+	public int getFlashSize() {
+		return flashSize;
+	}
+
+	public int getSramSize() {
+		return sramSize;
+	}
+
+	@Override
+	public String toString() {
+		return partNumber;
+	}
+}
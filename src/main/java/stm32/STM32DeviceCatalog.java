@@ -0,0 +1,247 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.util.*;
+
+import stm32.STM32Family.MemRegion;
+
+/**
+ * The STM32 families and part numbers the loader knows about, and a guess at which one an
+ * image was built for based on its vector table.
+ */
+public class STM32DeviceCatalog {
+
+	private static final Map<String, STM32Family> FAMILIES = new LinkedHashMap<>();
+	private static final Map<String, STM32Device> DEVICES = new LinkedHashMap<>();
+
+	public static final String DEFAULT_FAMILY = "STM32F2";
+
+	static {
+		// Pull these regions from the reference manuals, see the "Memory map" chapter
+		family("STM32F0", "STM32F0xx.svd", true, 32,
+			List.of(bus("APB", 0x40000000L, 0x18000), bus("AHB1", 0x40020000L, 0x4400),
+				bus("AHB2", 0x48000000L, 0x1800)),
+			new STM32FlashLayout(new int[] { 0x400 }),
+			region("SRAM", 0x20000000L, 0x8000, true, true, true),
+			region("System Memory", 0x1FFFEC00L, 0xC00, true, false, true),
+			region("Option Bytes", 0x1FFFF800L, 0x10, true, false, false));
+		device("STM32F030x4", "STM32F0", 0x4000, 0x1000);
+		device("STM32F030x6", "STM32F0", 0x8000, 0x1000);
+		device("STM32F030x8", "STM32F0", 0x10000, 0x2000);
+		device("STM32F072xB", "STM32F0", 0x20000, 0x4000);
+		device("STM32F030xC", "STM32F0", 0x40000, 0x8000);
+
+		family("STM32F1", "STM32F1xx.svd", false, 60,
+			List.of(bus("APB1", 0x40000000L, 0x8000), bus("APB2", 0x40010000L, 0x8000),
+				bus("AHB", 0x40018000L, 0x18000), bus("FSMC", 0xA0000000L, 0x1000)),
+			new STM32FlashLayout(new int[] { 0x400 }),
+			region("SRAM", 0x20000000L, 0x18000, true, true, true),
+			region("System Memory", 0x1FFFF000L, 0x800, true, false, true),
+			region("Option Bytes", 0x1FFFF800L, 0x10, true, false, false));
+		device("STM32F103x8", "STM32F1", 0x10000, 0x5000);
+		device("STM32F103xB", "STM32F1", 0x20000, 0x5000);
+		device("STM32F103xE", "STM32F1", 0x80000, 0x10000);
+		device("STM32F103xG", "STM32F1", 0x100000, 0x18000);
+
+		family("STM32F2", "STM32F2xx.svd", false, 81,
+			List.of(bus("APB1", 0x40000000L, 0x8000), bus("APB2", 0x40010000L, 0x8000),
+				bus("AHB1", 0x40020000L, 0x60000), bus("AHB2", 0x50000000L, 0x70000),
+				bus("FSMC", 0xA0000000L, 0x1000)), STM32FlashLayout.STM32F2,
+			region("SRAM", 0x20000000L, 0x20000, true, true, true),
+			region("System Memory", 0x1FFF0000L, 0x7800, true, true, true),
+			region("OTP", 0x1FFF7800L, 0x210, true, false, false),
+			region("Option Bytes", 0x1FFFC000L, 0x10, true, false, false));
+		device("STM32F205xB", "STM32F2", 0x20000, 0x10000);
+		device("STM32F205xE", "STM32F2", 0x80000, 0x20000);
+		device("STM32F207xG", "STM32F2", 0x100000, 0x20000);
+
+		family("STM32F4", "STM32F4xx.svd", false, 91,
+			List.of(bus("APB1", 0x40000000L, 0x8000), bus("APB2", 0x40010000L, 0x8000),
+				bus("AHB1", 0x40020000L, 0x60000), bus("AHB2", 0x50000000L, 0x70000),
+				bus("AHB3", 0xA0000000L, 0x2000)), STM32FlashLayout.STM32F4,
+			region("SRAM", 0x20000000L, 0x30000, true, true, true),
+			region("CCM SRAM", 0x10000000L, 0x10000, true, true, false),
+			region("System Memory", 0x1FFF0000L, 0x7800, true, false, true),
+			region("OTP", 0x1FFF7800L, 0x210, true, false, false),
+			region("Option Bytes", 0x1FFFC000L, 0x10, true, false, false));
+		device("STM32F401xC", "STM32F4", 0x40000, 0x10000);
+		device("STM32F411xE", "STM32F4", 0x80000, 0x20000);
+		device("STM32F407xG", "STM32F4", 0x100000, 0x20000);
+		device("STM32F429xI", "STM32F4", 0x200000, 0x30000);
+
+		family("STM32F7", "STM32F7xx.svd", false, 110,
+			List.of(bus("APB1", 0x40000000L, 0x8000), bus("APB2", 0x40010000L, 0x8000),
+				bus("AHB1", 0x40020000L, 0x60000), bus("AHB2", 0x50000000L, 0x70000),
+				bus("AHB3", 0xA0000000L, 0x2000)),
+			new STM32FlashLayout(new int[] { 0x8000, 0x8000, 0x8000, 0x8000, 0x20000, 0x40000 }),
+			region("SRAM", 0x20000000L, 0x80000, true, true, true),
+			region("System Memory", 0x1FF00000L, 0xEDC0, true, false, true),
+			region("OTP", 0x1FF0F000L, 0x420, true, false, false),
+			region("Option Bytes", 0x1FFF0000L, 0x20, true, false, false));
+		device("STM32F746xG", "STM32F7", 0x100000, 0x50000);
+		device("STM32F767xI", "STM32F7", 0x200000, 0x80000);
+
+		family("STM32L4", "STM32L4xx.svd", false, 82,
+			List.of(bus("APB1", 0x40000000L, 0x9800), bus("APB2", 0x40010000L, 0x6000),
+				bus("AHB1", 0x40020000L, 0x4400), bus("AHB2 GPIO", 0x48000000L, 0x2000),
+				bus("AHB2", 0x50000000L, 0x60C00)),
+			new STM32FlashLayout(new int[] { 0x800 }),
+			region("SRAM", 0x20000000L, 0x18000, true, true, true),
+			region("SRAM2", 0x10000000L, 0x8000, true, true, true),
+			region("System Memory", 0x1FFF0000L, 0x7000, true, false, true),
+			region("OTP", 0x1FFF7000L, 0x400, true, false, false),
+			region("Option Bytes", 0x1FFF7800L, 0x28, true, false, false));
+		device("STM32L432xC", "STM32L4", 0x40000, 0x10000);
+		device("STM32L476xG", "STM32L4", 0x100000, 0x18000);
+
+		// The H7 option bytes are only reachable through flash interface registers
+		family("STM32H7", "STM32H7xx.svd", false, 150,
+			List.of(bus("APB1", 0x40000000L, 0xD400), bus("APB2", 0x40010000L, 0x7800),
+				bus("AHB1", 0x40020000L, 0x60000), bus("AHB2", 0x48020000L, 0x2C00),
+				bus("APB3", 0x50000000L, 0x4000), bus("AHB3", 0x52000000L, 0x9000),
+				bus("APB4", 0x58000000L, 0x6800), bus("AHB4", 0x58020000L, 0x6800)),
+			new STM32FlashLayout(new int[] { 0x20000 }),
+			region("SRAM", 0x20000000L, 0x20000, true, true, true),
+			region("AXI SRAM", 0x24000000L, 0x80000, true, true, true),
+			region("SRAM1-3", 0x30000000L, 0x48000, true, true, true),
+			region("SRAM4", 0x38000000L, 0x10000, true, true, true),
+			region("System Memory", 0x1FF00000L, 0x20000, true, false, true));
+		device("STM32H743xI", "STM32H7", 0x200000, 0x20000);
+	}
+
+	private STM32DeviceCatalog() {
+		// utility class
+	}
+
+	private static MemRegion region(String name, long addr, int size, boolean read,
+			boolean write, boolean execute) {
+		return new MemRegion(name, addr, size, read, write, execute);
+	}
+
+	private static MemRegion bus(String name, long addr, int size) {
+		return new MemRegion(name, addr, size, true, true, false);
+	}
+
+	private static void family(String name, String svdFile, boolean cortexM0, int irqCount,
+			List<MemRegion> buses, STM32FlashLayout flashLayout, MemRegion... regions) {
+		// Only SRAM and CCM SRAM hold the initial stack, its top is one past the end of the
+		// region. Writable System Memory on the F2 is not RAM and must not count.
+		List<Long> stackRanges = new ArrayList<>();
+		for (MemRegion region : regions) {
+			if (region.write && region.name.contains("SRAM")) {
+				stackRanges.add(region.addr);
+				stackRanges.add(region.addr + region.size);
+			}
+		}
+		long[] ranges = stackRanges.stream().mapToLong(Long::longValue).toArray();
+		FAMILIES.put(name, new STM32Family(name, svdFile, cortexM0, irqCount, ranges,
+			flashLayout, List.of(regions), buses));
+	}
+
+	private static void device(String partNumber, String family, int flashSize, int sramSize) {
+		DEVICES.put(partNumber,
+			new STM32Device(partNumber, FAMILIES.get(family), flashSize, sramSize));
+	}
+
+	public static Collection<STM32Family> getFamilies() {
+		return Collections.unmodifiableCollection(FAMILIES.values());
+	}
+
+	public static Collection<STM32Device> getDevices() {
+		return Collections.unmodifiableCollection(DEVICES.values());
+	}
+
+	/**
+	 * Look up a part number, or a family name which selects the family's largest part.
+	 *
+	 * @return the device, or null if the name is unknown
+	 */
+	public static STM32Device find(String name) {
+		STM32Device device = DEVICES.get(name);
+		if (device != null) {
+			return device;
+		}
+		STM32Family family = FAMILIES.get(name);
+		return family == null ? null : getLargestDevice(family);
+	}
+
+	private static STM32Device getLargestDevice(STM32Family family) {
+		STM32Device largest = null;
+		for (STM32Device device : DEVICES.values()) {
+			if (device.getFamily() == family) {
+				largest = device;
+			}
+		}
+		return largest;
+	}
+
+	/**
+	 * @return true if {@code sp} is a plausible initial stack pointer for any known family
+	 */
+	public static boolean isStackAddress(long sp) {
+		for (STM32Family family : FAMILIES.values()) {
+			if (family.isStackAddress(sp)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Guess the device from the start of an image. The family is the one with the fewest
+	 * interrupts that still has room for every vector in the table and has RAM where the
+	 * initial stack pointer points. Cortex-M0 parts are recognized by their empty fault and
+	 * debug monitor slots. Within the family the smallest part whose SRAM holds the stack is
+	 * picked.
+	 *
+	 * @param ivt the first bytes of the image, see {@link STM32VectorTable#SNIFF_LENGTH}
+	 * @return the best match, or null if the image doesn't look like any known family
+	 */
+	public static STM32Device detect(byte[] ivt) {
+		if (ivt.length < 8) {
+			return null;
+		}
+		long sp = STM32VectorTable.getWord(ivt, 0);
+		int irqs = STM32VectorTable.countInterrupts(ivt);
+		boolean m0Slots = ivt.length >= 16 * 4 && STM32VectorTable.getWord(ivt, 4) == 0 &&
+			STM32VectorTable.getWord(ivt, 5) == 0 && STM32VectorTable.getWord(ivt, 6) == 0 &&
+			STM32VectorTable.getWord(ivt, 12) == 0;
+
+		STM32Family best = null;
+		for (STM32Family family : FAMILIES.values()) {
+			if (!family.isStackAddress(sp) || family.getIrqCount() < irqs ||
+				(family.isCortexM0() && !m0Slots)) {
+				continue;
+			}
+			if (best == null || family.getIrqCount() < best.getIrqCount()) {
+				best = family;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+
+		long sramBase = best.getRegions().get(0).addr;
+		for (STM32Device device : DEVICES.values()) {
+			if (device.getFamily() == best && sp > sramBase &&
+				sp <= sramBase + device.getSramSize()) {
+				return device;
+			}
+		}
+		return getLargestDevice(best);
+	}
+}
@@ -0,0 +1,151 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Memory layout shared by an STM32 product line. Describing a family is cheap; its
+ * peripheral map is only read from the SVD the first time {@link #getPeripherals()} is
+ * called, so adding families doesn't add to class-init time or memory footprint.
+ */
+public class STM32Family {
+
+	public static class MemRegion {
+		public final String name;
+		public final long addr;
+		public final int size;
+		public final boolean read;
+		public final boolean write;
+		public final boolean execute;
+
+		public MemRegion(String name, long addr, int size, boolean read, boolean write,
+				boolean execute) {
+			this.name = name;
+			this.addr = addr;
+			this.size = size;
+			this.read = read;
+			this.write = write;
+			this.execute = execute;
+		}
+	}
+
+	private final String name;
+	private final String svdFile;
+	private final boolean cortexM0;
+	private final int irqCount;
+	private final long[] stackRanges;
+	private final STM32FlashLayout flashLayout;
+	private final List<MemRegion> regions;
+	private final List<MemRegion> buses;
+
+	private STM32PeripheralDatabase peripherals;
+	private IOException peripheralsError;
+
+	/**
+	 * @param name family name, e.g. "STM32F2"
+	 * @param svdFile SVD file in data/svd holding the peripheral map
+	 * @param cortexM0 true for ARMv6-M parts, which lack the fault and debug monitor vectors
+	 * @param irqCount largest number of device interrupts in the family
+	 * @param stackRanges start/end pairs of RAM the initial stack pointer can point into
+	 * @param flashLayout erase units of the main flash
+	 * @param regions SRAM, system memory, OTP and option bytes; main SRAM comes first
+	 * @param buses peripheral bus windows, see {@link #getBuses()}
+	 */
+	STM32Family(String name, String svdFile, boolean cortexM0, int irqCount,
+			long[] stackRanges, STM32FlashLayout flashLayout, List<MemRegion> regions,
+			List<MemRegion> buses) {
+		this.name = name;
+		this.svdFile = svdFile;
+		this.cortexM0 = cortexM0;
+		this.irqCount = irqCount;
+		this.stackRanges = stackRanges;
+		this.flashLayout = flashLayout;
+		this.regions = regions;
+		this.buses = buses;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getSvdFile() {
+		return svdFile;
+	}
+
+	public boolean isCortexM0() {
+		return cortexM0;
+	}
+
+	public int getIrqCount() {
+		return irqCount;
+	}
+
+	public STM32FlashLayout getFlashLayout() {
+		return flashLayout;
+	}
+
+	public List<MemRegion> getRegions() {
+		return Collections.unmodifiableList(regions);
+	}
+
+	/**
+	 * @return the address windows of the peripheral buses (APB1, AHB1, ...), peripherals in
+	 * the same window can share one memory block
+	 */
+	public List<MemRegion> getBuses() {
+		return Collections.unmodifiableList(buses);
+	}
+
+	/**
+	 * @return true if {@code sp} is a plausible initial stack pointer for this family. The
+	 * top of a RAM is one past its end, so the end address is included.
+	 */
+	public boolean isStackAddress(long sp) {
+		for (int i = 0; i < stackRanges.length; i += 2) {
+			if (sp >= stackRanges[i] && sp <= stackRanges[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Load the peripheral map of this family on first use. A failure is remembered so a
+	 * missing SVD is only looked for once.
+	 */
+	public synchronized STM32PeripheralDatabase getPeripherals() throws IOException {
+		if (peripherals == null && peripheralsError == null) {
+			try {
+				peripherals = STM32PeripheralDatabase.load(svdFile);
+			}
+			catch (IOException e) {
+				peripheralsError = e;
+			}
+		}
+		if (peripheralsError != null) {
+			throw peripheralsError;
+		}
+		return peripherals;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
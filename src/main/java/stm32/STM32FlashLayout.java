@@ -0,0 +1,123 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Erase-unit layout of the main flash array. Used to split a full flash dump into
+ * programmed and erased (all 0xFF) runs so erased sectors don't have to be stored.
+ */
+public class STM32FlashLayout {
+
+	// Sector sizes from the STM32F2 reference manual, see the "Flash module organization" table
+	public static final STM32FlashLayout STM32F2 = new STM32FlashLayout(new int[] {
+		0x4000, 0x4000, 0x4000, 0x4000, 0x10000,
+		0x20000, 0x20000, 0x20000, 0x20000, 0x20000, 0x20000, 0x20000 });
+
+	// Same sectors as the F2, repeated for the second bank of the 2 MB parts
+	public static final STM32FlashLayout STM32F4 = new STM32FlashLayout(new int[] {
+		0x4000, 0x4000, 0x4000, 0x4000, 0x10000,
+		0x20000, 0x20000, 0x20000, 0x20000, 0x20000, 0x20000, 0x20000,
+		0x4000, 0x4000, 0x4000, 0x4000, 0x10000,
+		0x20000, 0x20000, 0x20000, 0x20000, 0x20000, 0x20000, 0x20000 });
+
+	private static final byte ERASED = (byte) 0xFF;
+	private static final int SCAN_CHUNK = 0x1000;
+
+	/**
+	 * A contiguous range of the image, either entirely erased or containing programmed data.
+	 */
+	public static class FlashRun {
+		public final long offset;
+		public final long length;
+		public final boolean erased;
+		public final int firstSector;
+
+		FlashRun(long offset, long length, boolean erased, int firstSector) {
+			this.offset = offset;
+			this.length = length;
+			this.erased = erased;
+			this.firstSector = firstSector;
+		}
+	}
+
+	private final int[] sectorSizes;
+
+	/**
+	 * @param sectorSizes size of each sector in order, sectors past the end of the table
+	 * repeat the last size
+	 */
+	public STM32FlashLayout(int[] sectorSizes) {
+		this.sectorSizes = sectorSizes;
+	}
+
+	public int getSectorSize(int sector) {
+		return sectorSizes[Math.min(sector, sectorSizes.length - 1)];
+	}
+
+	/**
+	 * Scan the first {@code length} bytes of the image sector by sector and merge adjacent
+	 * sectors with the same state into runs. Only bytes up to the first programmed byte of
+	 * each sector are read.
+	 */
+	public List<FlashRun> findRuns(ByteProvider provider, long length, TaskMonitor monitor)
+			throws IOException, CancelledException {
+		List<FlashRun> runs = new ArrayList<>();
+		long runStart = 0;
+		int runSector = 0;
+		boolean runErased = false;
+		long offset = 0;
+		for (int sector = 0; offset < length; sector++) {
+			monitor.checkCanceled();
+			long size = Math.min(getSectorSize(sector), length - offset);
+			boolean erased = isErased(provider, offset, size);
+			if (offset == 0) {
+				runErased = erased;
+			}
+			else if (erased != runErased) {
+				runs.add(new FlashRun(runStart, offset - runStart, runErased, runSector));
+				runStart = offset;
+				runSector = sector;
+				runErased = erased;
+			}
+			offset += size;
+		}
+		if (length > 0) {
+			runs.add(new FlashRun(runStart, length - runStart, runErased, runSector));
+		}
+		return runs;
+	}
+
+	private static boolean isErased(ByteProvider provider, long offset, long size)
+			throws IOException {
+		for (long pos = offset; pos < offset + size; pos += SCAN_CHUNK) {
+			byte[] bytes = provider.readBytes(pos, Math.min(SCAN_CHUNK, offset + size - pos));
+			for (byte b : bytes) {
+				if (b != ERASED) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
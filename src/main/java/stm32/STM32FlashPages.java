@@ -0,0 +1,159 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.framework.options.Options;
+import ghidra.program.model.listing.Program;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Hashes of a flash image in fixed size pages. They are stored with the program at import
+ * so a later build of the same firmware can be loaded into it by rewriting only the pages
+ * that differ. Pages past the end of the image hash as erased flash, so a shorter build
+ * erases the tail of the old one.
+ */
+public class STM32FlashPages {
+
+	// Smaller than any erase sector so a small patch stays a small diff
+	public static final int PAGE_SIZE = 0x400;
+	public static final String HASHES_PROPERTY = "STM32 Flash Page Hashes";
+	public static final String LENGTH_PROPERTY = "STM32 Flash Length";
+
+	// Leading bytes of each page's SHA-256 that are kept
+	private static final int HASH_BYTES = 8;
+
+	private final long length;
+	private final byte[] hashes;
+
+	private STM32FlashPages(long length, byte[] hashes) {
+		this.length = length;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Hash the first {@code length} bytes of the image, one page at a time.
+	 */
+	public static STM32FlashPages compute(ByteProvider provider, long length,
+			TaskMonitor monitor) throws IOException, CancelledException {
+		int pages = (int) ((length + PAGE_SIZE - 1) / PAGE_SIZE);
+		byte[] hashes = new byte[pages * HASH_BYTES];
+		byte[] page = new byte[PAGE_SIZE];
+		MessageDigest digest = newDigest();
+		try (InputStream in = provider.getInputStream(0)) {
+			for (int i = 0; i < pages; i++) {
+				monitor.checkCanceled();
+				int n = readFully(in, page, (int) Math.min(PAGE_SIZE, length - (long) i * PAGE_SIZE));
+				Arrays.fill(page, n, PAGE_SIZE, (byte) 0xFF);
+				System.arraycopy(digest.digest(page), 0, hashes, i * HASH_BYTES, HASH_BYTES);
+			}
+		}
+		return new STM32FlashPages(length, hashes);
+	}
+
+	/**
+	 * @return the hashes recorded when the program was imported, or null if there are none
+	 */
+	public static STM32FlashPages forProgram(Program program) {
+		Options info = program.getOptions(Program.PROGRAM_INFO);
+		byte[] hashes = info.getByteArray(HASHES_PROPERTY, null);
+		long length = info.getLong(LENGTH_PROPERTY, -1);
+		if (hashes == null || length < 0 || hashes.length % HASH_BYTES != 0) {
+			return null;
+		}
+		return new STM32FlashPages(length, hashes);
+	}
+
+	public void record(Program program) {
+		Options info = program.getOptions(Program.PROGRAM_INFO);
+		info.setByteArray(HASHES_PROPERTY, hashes);
+		info.setLong(LENGTH_PROPERTY, length);
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getPageCount() {
+		return hashes.length / HASH_BYTES;
+	}
+
+	/**
+	 * Compare with the hashes of an earlier image.
+	 *
+	 * @return the byte ranges, as {start, end} offsets with the end exclusive, of the runs of
+	 * pages that differ
+	 */
+	public List<long[]> diff(STM32FlashPages previous) {
+		byte[] erased = new byte[PAGE_SIZE];
+		Arrays.fill(erased, (byte) 0xFF);
+		byte[] erasedHash = Arrays.copyOf(newDigest().digest(erased), HASH_BYTES);
+
+		List<long[]> runs = new ArrayList<>();
+		int pages = Math.max(getPageCount(), previous.getPageCount());
+		long end = Math.max(length, previous.length);
+		for (int i = 0; i < pages; i++) {
+			if (Arrays.equals(getHash(i, erasedHash), previous.getHash(i, erasedHash))) {
+				continue;
+			}
+			long start = (long) i * PAGE_SIZE;
+			long[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+			if (last != null && last[1] == start) {
+				last[1] = Math.min(start + PAGE_SIZE, end);
+			}
+			else {
+				runs.add(new long[] { start, Math.min(start + PAGE_SIZE, end) });
+			}
+		}
+		return runs;
+	}
+
+	private byte[] getHash(int page, byte[] erasedHash) {
+		if (page >= getPageCount()) {
+			return erasedHash;
+		}
+		return Arrays.copyOfRange(hashes, page * HASH_BYTES, (page + 1) * HASH_BYTES);
+	}
+
+	private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int n = 0;
+		while (n < length) {
+			int read = in.read(buffer, n, length - n);
+			if (read < 0) {
+				break;
+			}
+			n += read;
+		}
+		return n;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new AssertionError(e);
+		}
+	}
+}
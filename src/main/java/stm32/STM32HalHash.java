@@ -0,0 +1,141 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+/**
+ * Hashes of Thumb code with everything the linker may change masked out, so a library
+ * function hashes the same in its object file and in any image it is linked into.
+ * <p>
+ * Masked are the immediates of BL and B.W, which reach other functions, the immediates of
+ * MOVW and MOVT, which build addresses, and every literal pool word loaded with a PC
+ * relative LDR. Branches within the function and the rest of each instruction are kept.
+ * The code is decoded in a single pass from the start, and a pool word is only recognised
+ * once an earlier load has pointed at it, which is how compilers lay them out.
+ * <p>
+ * Nothing here depends on Ghidra, the same code runs in {@code STM32HalIndexBuilder} when
+ * the index is generated and on the flash bytes when it is probed.
+ */
+public class STM32HalHash {
+
+	// Every indexed function is at least this long, and this much of it is the probe key
+	public static final int PREFIX_LENGTH = 32;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private STM32HalHash() {
+	}
+
+	/**
+	 * Hash the first {@link #PREFIX_LENGTH} bytes of the function at {@code offset}.
+	 *
+	 * @param address where the function is loaded, only its alignment matters
+	 */
+	public static long prefixHash(byte[] code, int offset, long address) {
+		return hash(code, offset, PREFIX_LENGTH, address);
+	}
+
+	/**
+	 * Hash {@code length} bytes of the function at {@code offset}. The last instruction may
+	 * be read past the end of the function when it is only partly included.
+	 *
+	 * @param address where the function is loaded, only its alignment matters
+	 */
+	public static long hash(byte[] code, int offset, int length, long address) {
+		byte[] masked = mask(code, offset, length, address);
+		long hash = FNV_OFFSET;
+		for (byte b : masked) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return a copy of {@code length} bytes of the function at {@code offset} with the link
+	 * dependent fields cleared
+	 */
+	static byte[] mask(byte[] code, int offset, int length, long address) {
+		byte[] out = new byte[length];
+		boolean[] pool = new boolean[length];
+		int i = 0;
+		while (i + 1 < length) {
+			if (pool[i]) {
+				// out is still zero here, skip the whole word
+				i += 4;
+				continue;
+			}
+			int hw1 = getHalfword(code, offset + i);
+			boolean wide = (hw1 & 0xE000) == 0xE000 && (hw1 & 0x1800) != 0 &&
+				offset + i + 4 <= code.length;
+			if (!wide) {
+				if ((hw1 & 0xF800) == 0x4800) {
+					// LDR Rt, [PC, #imm8 * 4]
+					markPool(pool, align(address + i + 4) + (hw1 & 0xFF) * 4 - address);
+				}
+				put(out, i, hw1);
+				i += 2;
+				continue;
+			}
+			int hw2 = getHalfword(code, offset + i + 2);
+			if ((hw1 & 0xFB70) == 0xF240) {
+				// MOVW and MOVT, keep only the destination register
+				hw1 &= 0xFBF0;
+				hw2 &= 0x0F00;
+			}
+			else if ((hw1 & 0xF800) == 0xF000 && (hw2 & 0x8000) != 0 &&
+				(hw2 & 0x5000) != 0) {
+				// BL, BLX and B.W, the target is somewhere else in the image
+				hw1 &= 0xF800;
+				hw2 &= 0xD000;
+			}
+			else if ((hw1 & 0xFF7F) == 0xF85F) {
+				// LDR.W Rt, [PC, #+/-imm12]
+				int imm = hw2 & 0xFFF;
+				long target = align(address + i + 4) + ((hw1 & 0x80) != 0 ? imm : -imm);
+				markPool(pool, target - address);
+			}
+			put(out, i, hw1);
+			if (i + 2 < length) {
+				put(out, i + 2, hw2);
+			}
+			i += 4;
+		}
+		if (i == length - 1) {
+			out[i] = code[offset + i];
+		}
+		return out;
+	}
+
+	private static void markPool(boolean[] pool, long offset) {
+		// A word cut off by the end is still masked, so a prefix agrees with the whole
+		if (offset >= 0 && offset < pool.length) {
+			pool[(int) offset] = true;
+		}
+	}
+
+	private static long align(long pc) {
+		return pc & ~3L;
+	}
+
+	private static int getHalfword(byte[] code, int offset) {
+		return (code[offset] & 0xff) | (code[offset + 1] & 0xff) << 8;
+	}
+
+	private static void put(byte[] out, int offset, int hw) {
+		out[offset] = (byte) hw;
+		out[offset + 1] = (byte) (hw >> 8);
+	}
+}
@@ -0,0 +1,424 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntPredicate;
+
+import ghidra.app.cmd.disassemble.DisassembleCommand;
+import ghidra.app.cmd.function.ApplyFunctionSignatureCmd;
+import ghidra.app.cmd.function.CreateFunctionCmd;
+import ghidra.app.util.cparser.C.*;
+import ghidra.app.util.importer.MessageLog;
+import ghidra.program.model.address.*;
+import ghidra.program.model.data.DataType;
+import ghidra.program.model.data.FunctionDefinition;
+import ghidra.program.model.lang.Register;
+import ghidra.program.model.listing.*;
+import ghidra.program.model.mem.MemoryAccessException;
+import ghidra.program.model.mem.MemoryBlock;
+import ghidra.program.model.symbol.*;
+import ghidra.util.exception.*;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Names the HAL, LL and CMSIS functions linked into a flash image by probing the
+ * {@link STM32HalIndex} with the masked hash of every likely function start.
+ * <p>
+ * The candidates are the functions already in the program, which at load time are the
+ * handlers seeded from the vector table, and the target of every BL and B.W found in the
+ * executable blocks. Finding the calls and hashing the candidates are both split over the
+ * fork-join pool, and the matches are written into the program in one batch afterwards.
+ * Unlike FunctionID this never disassembles or creates functions to find out where they
+ * are, and a candidate that is not in the index costs a single prefix hash.
+ */
+public class STM32HalIdentifier {
+
+	// Below this a block is scanned for calls directly instead of being split further
+	private static final int CHUNK_SIZE = 0x10000;
+	// Below this many candidates they are hashed directly
+	private static final int CANDIDATE_CHUNK = 0x400;
+	// Entry of a candidate that matched functions of different names equally well
+	private static final int AMBIGUOUS = -1;
+
+	/**
+	 * Index entries matched by {@link #identify}, in address order.
+	 */
+	public static class Matches {
+		public final long[] address;
+		public final int[] entry;
+		// Candidate function starts that were hashed
+		public final int candidates;
+		// Candidates that matched several functions equally well and were left alone
+		public final int ambiguous;
+
+		Matches(long[] address, int[] entry, int candidates, int ambiguous) {
+			this.address = address;
+			this.entry = entry;
+			this.candidates = candidates;
+			this.ambiguous = ambiguous;
+		}
+
+		public int size() {
+			return address.length;
+		}
+	}
+
+	private final STM32HalIndex index;
+
+	public STM32HalIdentifier(STM32HalIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Hash the candidate function starts in the executable blocks and look them up.
+	 *
+	 * @param restrict only candidates in this set are hashed, or null for all of them
+	 */
+	public Matches identify(Program program, AddressSetView restrict, TaskMonitor monitor)
+			throws CancelledException {
+		List<Long> address = new ArrayList<>();
+		List<Integer> entry = new ArrayList<>();
+		int candidates = 0;
+		int ambiguous = 0;
+		FunctionManager functionManager = program.getFunctionManager();
+		for (MemoryBlock block : program.getMemory().getBlocks()) {
+			monitor.checkCanceled();
+			if (!block.isInitialized() || !block.isExecute() ||
+				block.getSize() > Integer.MAX_VALUE) {
+				continue;
+			}
+			byte[] bytes = new byte[(int) block.getSize()];
+			try {
+				block.getBytes(block.getStart(), bytes);
+			}
+			catch (MemoryAccessException e) {
+				continue;
+			}
+			long base = block.getStart().getOffset();
+
+			int[] calls = ForkJoinPool.commonPool().invoke(
+				new CallScanTask(bytes, base, 0, bytes.length - 3, monitor));
+			int[] seeds = new int[16];
+			int count = 0;
+			for (Function function : functionManager.getFunctions(
+				new AddressSet(block.getStart(), block.getEnd()), true)) {
+				if (count == seeds.length) {
+					seeds = Arrays.copyOf(seeds, count * 2);
+				}
+				seeds[count++] = (int) (function.getEntryPoint().getOffset() - base);
+			}
+			int[] offsets = getCandidates(calls, Arrays.copyOf(seeds, count), bytes.length,
+				offset -> restrict == null || restrict.contains(block.getStart().add(offset)));
+			monitor.checkCanceled();
+			candidates += offsets.length;
+
+			long[] found = ForkJoinPool.commonPool().invoke(
+				new ProbeTask(bytes, base, offsets, 0, offsets.length, monitor));
+			monitor.checkCanceled();
+			// A match that starts inside the function matched before it is not a function
+			long end = Long.MIN_VALUE;
+			for (long packed : found) {
+				int offset = (int) (packed >>> 32);
+				int e = (int) packed;
+				if (offset < end) {
+					continue;
+				}
+				if (e == AMBIGUOUS) {
+					ambiguous++;
+					continue;
+				}
+				address.add(base + offset);
+				entry.add(e);
+				end = offset + index.getLength(e);
+			}
+		}
+		long[] addresses = new long[address.size()];
+		int[] entries = new int[entry.size()];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = address.get(i);
+			entries[i] = entry.get(i);
+		}
+		return new Matches(addresses, entries, candidates, ambiguous);
+	}
+
+	/**
+	 * Merge the call targets and seeded functions into sorted, distinct offsets that leave
+	 * room for a prefix.
+	 */
+	private static int[] getCandidates(int[] calls, int[] seeds, int length,
+			IntPredicate include) {
+		int[] all = Arrays.copyOf(calls, calls.length + seeds.length);
+		System.arraycopy(seeds, 0, all, calls.length, seeds.length);
+		Arrays.sort(all);
+		int count = 0;
+		for (int i = 0; i < all.length; i++) {
+			int offset = all[i];
+			if ((count > 0 && all[count - 1] == offset) || offset < 0 ||
+				offset + STM32HalHash.PREFIX_LENGTH > length || !include.test(offset)) {
+				continue;
+			}
+			all[count++] = offset;
+		}
+		return Arrays.copyOf(all, count);
+	}
+
+	/**
+	 * Name the matched functions, creating the ones that don't exist yet, and apply their
+	 * signatures. Functions named by the loader or the user keep their name and get the
+	 * library name as a second label.
+	 */
+	public void apply(Program program, Matches matches, TaskMonitor monitor, MessageLog log,
+			STM32LoadMetrics metrics) throws CancelledException {
+		AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+		FunctionManager functionManager = program.getFunctionManager();
+		SymbolTable symbolTable = program.getSymbolTable();
+
+		monitor.setMessage("Creating HAL functions...");
+		AddressSet entries = new AddressSet();
+		Register tmode = program.getRegister("TMode");
+		for (long addr : matches.address) {
+			monitor.checkCanceled();
+			Address entry = space.getAddress(addr);
+			if (functionManager.getFunctionAt(entry) != null) {
+				continue;
+			}
+			entries.add(entry);
+			// Cortex-M only runs Thumb code, disassembly must not start in ARM mode
+			if (tmode != null) {
+				try {
+					program.getProgramContext().setValue(tmode, entry, entry, BigInteger.ONE);
+				}
+				catch (ContextChangeException e) {
+					log.appendMsg("Unable to set Thumb mode at " + entry + ": " + e.getMessage());
+				}
+			}
+		}
+		if (!entries.isEmpty()) {
+			new DisassembleCommand(entries, null, true).applyTo(program, monitor);
+			new CreateFunctionCmd(entries).applyTo(program, monitor);
+		}
+
+		monitor.setMessage("Naming HAL functions...");
+		monitor.initialize(matches.size());
+		CParser parser = new CParser(program.getDataTypeManager(), false, null);
+		Map<String, FunctionDefinition> signatures = new HashMap<>();
+		for (int i = 0; i < matches.size(); i++) {
+			monitor.checkCanceled();
+			monitor.incrementProgress(1);
+			Address entry = space.getAddress(matches.address[i]);
+			String name = index.getName(matches.entry[i]);
+			Function function = functionManager.getFunctionAt(entry);
+			if (function == null) {
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+				continue;
+			}
+			try {
+				SourceType source = function.getSymbol().getSource();
+				if (source == SourceType.IMPORTED || source == SourceType.USER_DEFINED) {
+					symbolTable.createLabel(entry, name, SourceType.ANALYSIS);
+					metrics.count("hal functions", 1);
+					continue;
+				}
+				function.setName(name, SourceType.ANALYSIS);
+				metrics.count("hal functions", 1);
+			}
+			catch (DuplicateNameException | InvalidInputException e) {
+				log.appendMsg("Unable to name " + entry + " " + name + ": " + e.getMessage());
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+				continue;
+			}
+
+			String prototype = index.getSignature(matches.entry[i]);
+			if (prototype == null) {
+				continue;
+			}
+			FunctionDefinition signature = signatures.computeIfAbsent(prototype,
+				p -> parse(parser, p));
+			if (signature != null &&
+				new ApplyFunctionSignatureCmd(entry, signature, SourceType.ANALYSIS).applyTo(
+					program, monitor)) {
+				metrics.count("hal signatures", 1);
+			}
+		}
+	}
+
+	private static FunctionDefinition parse(CParser parser, String prototype) {
+		try {
+			DataType type = parser.parse(prototype);
+			return type instanceof FunctionDefinition ? (FunctionDefinition) type : null;
+		}
+		catch (ParseException | TokenMgrError e) {
+			// The generator only writes built-in types, leave the function with just its name
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the targets of BL and B.W instructions, decoded at every halfword since the code
+	 * has not been disassembled yet. Data that happens to decode as a call only adds a
+	 * candidate that won't be in the index.
+	 */
+	private static class CallScanTask extends RecursiveTask<int[]> {
+		private final byte[] bytes;
+		private final long base;
+		private final int start;
+		private final int end;
+		private final TaskMonitor monitor;
+
+		CallScanTask(byte[] bytes, long base, int start, int end, TaskMonitor monitor) {
+			this.bytes = bytes;
+			this.base = base;
+			this.start = start;
+			this.end = end;
+			this.monitor = monitor;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (end - start <= CHUNK_SIZE) {
+				return scanChunk();
+			}
+			int mid = start + ((end - start) / 2 & ~1);
+			CallScanTask left = new CallScanTask(bytes, base, start, mid, monitor);
+			left.fork();
+			int[] right = new CallScanTask(bytes, base, mid, end, monitor).compute();
+			int[] result = left.join();
+			int[] merged = Arrays.copyOf(result, result.length + right.length);
+			System.arraycopy(right, 0, merged, result.length, right.length);
+			return merged;
+		}
+
+		private int[] scanChunk() {
+			if (monitor.isCancelled()) {
+				return new int[0];
+			}
+			int[] targets = new int[16];
+			int count = 0;
+			// Keep halfword alignment relative to the address, not the buffer
+			for (int i = start + (int) ((start + base) & 1); i < end; i += 2) {
+				int hw1 = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8;
+				int hw2 = (bytes[i + 2] & 0xff) | (bytes[i + 3] & 0xff) << 8;
+				// BL and B.W, BLX switches to ARM code and is never a Cortex-M target
+				if ((hw1 & 0xF800) != 0xF000 ||
+					((hw2 & 0xD000) != 0xD000 && (hw2 & 0xD000) != 0x9000)) {
+					continue;
+				}
+				int s = (hw1 >> 10) & 1;
+				int i1 = ~((hw2 >> 13) ^ s) & 1;
+				int i2 = ~((hw2 >> 11) ^ s) & 1;
+				int imm = s << 24 | i1 << 23 | i2 << 22 | (hw1 & 0x3FF) << 12 | (hw2 & 0x7FF) << 1;
+				// Sign extend the 25-bit offset
+				long target = i + 4 + ((imm << 7) >> 7);
+				if (target < 0 || target >= bytes.length) {
+					continue;
+				}
+				if (count == targets.length) {
+					targets = Arrays.copyOf(targets, count * 2);
+				}
+				targets[count++] = (int) target;
+			}
+			return Arrays.copyOf(targets, count);
+		}
+	}
+
+	/**
+	 * Looks up a range of candidates.
+	 *
+	 * @return matches packed as (offset << 32 | entry), in offset order
+	 */
+	private class ProbeTask extends RecursiveTask<long[]> {
+		private final byte[] bytes;
+		private final long base;
+		private final int[] offsets;
+		private final int start;
+		private final int end;
+		private final TaskMonitor monitor;
+
+		ProbeTask(byte[] bytes, long base, int[] offsets, int start, int end,
+				TaskMonitor monitor) {
+			this.bytes = bytes;
+			this.base = base;
+			this.offsets = offsets;
+			this.start = start;
+			this.end = end;
+			this.monitor = monitor;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (end - start <= CANDIDATE_CHUNK) {
+				return probeChunk();
+			}
+			int mid = (start + end) >>> 1;
+			ProbeTask left = new ProbeTask(bytes, base, offsets, start, mid, monitor);
+			left.fork();
+			long[] right = new ProbeTask(bytes, base, offsets, mid, end, monitor).compute();
+			long[] result = left.join();
+			long[] merged = Arrays.copyOf(result, result.length + right.length);
+			System.arraycopy(right, 0, merged, result.length, right.length);
+			return merged;
+		}
+
+		private long[] probeChunk() {
+			if (monitor.isCancelled()) {
+				return new long[0];
+			}
+			long[] matches = new long[16];
+			int count = 0;
+			for (int c = start; c < end; c++) {
+				int offset = offsets[c];
+				long prefix = STM32HalHash.prefixHash(bytes, offset, base + offset);
+				int first = index.find(prefix);
+				if (first == STM32HalIndex.NONE) {
+					continue;
+				}
+				// The longest function that matches wins, a tie between names is ambiguous
+				int best = STM32HalIndex.NONE;
+				int bestLength = 0;
+				boolean ambiguous = false;
+				int last = index.getEntryCount();
+				for (int e = first; e < last && index.getPrefix(e) == prefix; e++) {
+					int length = index.getLength(e);
+					if (length < bestLength || offset + length > bytes.length || STM32HalHash.hash(
+						bytes, offset, length, base + offset) != index.getHash(e)) {
+						continue;
+					}
+					if (length > bestLength) {
+						best = e;
+						bestLength = length;
+						ambiguous = false;
+					}
+					else if (index.getNameId(e) != index.getNameId(best)) {
+						ambiguous = true;
+					}
+				}
+				if (best == STM32HalIndex.NONE) {
+					continue;
+				}
+				if (count == matches.length) {
+					matches = Arrays.copyOf(matches, count * 2);
+				}
+				int entry = ambiguous ? AMBIGUOUS : best;
+				matches[count++] = (long) offset << 32 | (entry & 0xffffffffL);
+			}
+			return Arrays.copyOf(matches, count);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import generic.jar.ResourceFile;
+import ghidra.framework.Application;
+import stm32.STM32PeripheralDatabase.StringTable;
+
+/**
+ * Masked instruction hashes of known HAL, LL and CMSIS functions, generated offline by
+ * {@code STM32HalIndexBuilder} and shipped in the extension's data/hal directory.
+ * <p>
+ * The file is memory-mapped and probed in place. Entries are fixed size records sorted by
+ * the hash of the first {@link STM32HalHash#PREFIX_LENGTH} bytes of the function, so a
+ * candidate address costs one prefix hash and a binary search, and the hash of the whole
+ * function is only computed for the few entries that share its prefix. Several versions of
+ * a library may contribute the same function, identical copies are stored once.
+ */
+public class STM32HalIndex {
+
+	public static final String DATA_FILE = "hal/stm32-hal.idx";
+	public static final int NONE = -1;
+
+	private static final int MAGIC = 0x53333248; // "S32H"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	// prefix hash, hash, length, name, signature, library
+	private static final int ENTRY_SIZE = 32;
+
+	/**
+	 * One function of one library, as collected by the generator.
+	 */
+	static class Entry {
+		final long prefix;
+		final long hash;
+		final int length;
+		final String name;
+		// C prototype using only built-in types, or null
+		final String signature;
+		final String library;
+
+		Entry(long prefix, long hash, int length, String name, String signature,
+				String library) {
+			this.prefix = prefix;
+			this.hash = hash;
+			this.length = length;
+			this.name = name;
+			this.signature = signature;
+			this.library = library;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final int entryCount;
+	private final int[] stringOffsets;
+	private final String[] strings;
+	private final int stringStart;
+	private final int entryStart;
+
+	private STM32HalIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		ByteBuffer header = buffer.duplicate();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC ||
+			header.getInt() != FORMAT_VERSION) {
+			throw new IOException("Not a HAL function index");
+		}
+		entryCount = header.getInt();
+		int stringCount = header.getInt();
+		stringOffsets = new int[stringCount + 1];
+		header.asIntBuffer().get(stringOffsets);
+		strings = new String[stringCount];
+		stringStart = HEADER_SIZE + stringOffsets.length * 4;
+		entryStart = stringStart + stringOffsets[stringCount];
+		if (buffer.limit() < entryStart + (long) entryCount * ENTRY_SIZE) {
+			throw new IOException("Truncated HAL function index");
+		}
+	}
+
+	/**
+	 * Open the index shipped in this extension's data/hal directory.
+	 *
+	 * @throws FileNotFoundException if the extension was built without one
+	 */
+	public static STM32HalIndex load() throws IOException {
+		ResourceFile file =
+			Application.getModuleDataFile(STM32PeripheralDatabase.MODULE_NAME, DATA_FILE);
+		return open(file.getFile(true));
+	}
+
+	public static STM32HalIndex open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new STM32HalIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				channel.size()));
+		}
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return the first entry with the given prefix hash, or {@link #NONE}
+	 */
+	public int find(long prefix) {
+		int low = 0;
+		int high = entryCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getPrefix(mid) < prefix) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low < entryCount && getPrefix(low) == prefix ? low : NONE;
+	}
+
+	public long getPrefix(int entry) {
+		return buffer.getLong(entryStart + entry * ENTRY_SIZE);
+	}
+
+	public long getHash(int entry) {
+		return buffer.getLong(entryStart + entry * ENTRY_SIZE + 8);
+	}
+
+	public int getLength(int entry) {
+		return buffer.getInt(entryStart + entry * ENTRY_SIZE + 16);
+	}
+
+	/**
+	 * @return an id that two entries share exactly when their names are equal
+	 */
+	int getNameId(int entry) {
+		return buffer.getInt(entryStart + entry * ENTRY_SIZE + 20);
+	}
+
+	public String getName(int entry) {
+		return getString(getNameId(entry));
+	}
+
+	/**
+	 * @return the C prototype of the function, or null if the generator had none
+	 */
+	public String getSignature(int entry) {
+		return getString(buffer.getInt(entryStart + entry * ENTRY_SIZE + 24));
+	}
+
+	/**
+	 * @return the library the entry was first found in
+	 */
+	public String getLibrary(int entry) {
+		return getString(buffer.getInt(entryStart + entry * ENTRY_SIZE + 28));
+	}
+
+	private String getString(int index) {
+		if (index == NONE) {
+			return null;
+		}
+		// Racing threads decode the same string, either copy will do
+		String s = strings[index];
+		if (s == null) {
+			byte[] b = new byte[stringOffsets[index + 1] - stringOffsets[index]];
+			ByteBuffer view = buffer.duplicate();
+			view.position(stringStart + stringOffsets[index]);
+			view.get(b);
+			s = new String(b, StandardCharsets.UTF_8).intern();
+			strings[index] = s;
+		}
+		return s;
+	}
+
+	/**
+	 * Write entries in the index format, sorted for {@link #find(long)} and with duplicates
+	 * of the same function dropped.
+	 */
+	static void write(List<Entry> entries, OutputStream stream) throws IOException {
+		List<Entry> sorted = new ArrayList<>(entries);
+		sorted.sort(Comparator.comparingLong((Entry e) -> e.prefix).thenComparingLong(
+			e -> e.hash).thenComparingInt(e -> e.length).thenComparing(e -> e.name));
+
+		StringTable stringTable = new StringTable();
+		List<int[]> records = new ArrayList<>();
+		List<Entry> unique = new ArrayList<>();
+		Entry last = null;
+		for (Entry e : sorted) {
+			if (last != null && last.prefix == e.prefix && last.hash == e.hash &&
+				last.length == e.length && last.name.equals(e.name)) {
+				continue;
+			}
+			unique.add(e);
+			records.add(new int[] { stringTable.add(e.name), stringTable.add(e.signature),
+				stringTable.add(e.library) });
+			last = e;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(unique.size());
+		out.writeInt(stringTable.size());
+		stringTable.write(out);
+		for (int i = 0; i < unique.size(); i++) {
+			Entry e = unique.get(i);
+			out.writeLong(e.prefix);
+			out.writeLong(e.hash);
+			out.writeInt(e.length);
+			for (int value : records.get(i)) {
+				out.writeInt(value);
+			}
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,192 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import ghidra.program.model.address.Address;
+import ghidra.program.model.address.AddressSpace;
+import ghidra.program.model.listing.Program;
+import ghidra.program.model.mem.MemoryAccessException;
+import ghidra.program.model.mem.MemoryBlock;
+import ghidra.program.model.symbol.*;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Finds peripheral addresses in the literal pools of a flash image. Peripheral accesses in
+ * Thumb code load the register address from a word-aligned literal, so every aligned word
+ * that falls inside a peripheral is treated as a pointer to it. The flash is split into
+ * chunks that are scanned in parallel on the fork-join pool, and all hits are turned into
+ * DATA references in one batch afterwards.
+ */
+public class STM32LiteralScanner {
+
+	// Below this a chunk is scanned directly instead of being split further
+	private static final int CHUNK_SIZE = 0x10000;
+
+	/**
+	 * Literal words found by a scan, in address order.
+	 */
+	public static class Hits {
+		public final long[] from;
+		public final long[] to;
+		// Index entry of the register at 'to', or STM32RegisterIndex.NONE
+		public final int[] register;
+
+		Hits(long[] from, long[] to, int[] register) {
+			this.from = from;
+			this.to = to;
+			this.register = register;
+		}
+
+		public int size() {
+			return from.length;
+		}
+	}
+
+	private final STM32RegisterIndex index;
+
+	public STM32LiteralScanner(STM32RegisterIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Scan the initialized memory in {@code [start, end]} for peripheral literals.
+	 */
+	public Hits scan(Program program, long start, long end, TaskMonitor monitor)
+			throws CancelledException {
+		long[] packed = new long[0];
+		for (MemoryBlock block : program.getMemory().getBlocks()) {
+			monitor.checkCanceled();
+			long blockStart = block.getStart().getOffset();
+			long blockEnd = block.getEnd().getOffset();
+			if (!block.isInitialized() || blockEnd < start || blockStart > end) {
+				continue;
+			}
+			long first = Math.max(start, blockStart);
+			byte[] bytes = new byte[(int) (Math.min(end, blockEnd) - first + 1)];
+			try {
+				block.getBytes(block.getStart().add(first - blockStart), bytes);
+			}
+			catch (MemoryAccessException e) {
+				continue;
+			}
+			long[] found = scan(bytes, first, monitor);
+			long[] merged = Arrays.copyOf(packed, packed.length + found.length);
+			System.arraycopy(found, 0, merged, packed.length, found.length);
+			packed = merged;
+		}
+		monitor.checkCanceled();
+		return unpack(packed);
+	}
+
+	/**
+	 * Scan a buffer loaded at {@code base}.
+	 *
+	 * @return hits packed as (word offset << 32 | value), in address order
+	 */
+	long[] scan(byte[] bytes, long base, TaskMonitor monitor) {
+		// Keep word alignment relative to the address, not the buffer
+		int first = (int) ((4 - (base & 3)) & 3);
+		long[] hits = ForkJoinPool.commonPool().invoke(
+			new ScanTask(bytes, first, bytes.length - 3, monitor));
+		for (int i = 0; i < hits.length; i++) {
+			hits[i] = (base + (hits[i] >>> 32)) << 32 | (hits[i] & 0xffffffffL);
+		}
+		return hits;
+	}
+
+	private Hits unpack(long[] packed) {
+		long[] from = new long[packed.length];
+		long[] to = new long[packed.length];
+		int[] register = new int[packed.length];
+		for (int i = 0; i < packed.length; i++) {
+			from[i] = packed[i] >>> 32;
+			to[i] = packed[i] & 0xffffffffL;
+			register[i] = index.findRegister(to[i]);
+		}
+		return new Hits(from, to, register);
+	}
+
+	/**
+	 * Add a DATA reference for every hit.
+	 */
+	public static void apply(Program program, Hits hits, TaskMonitor monitor)
+			throws CancelledException {
+		AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+		ReferenceManager refManager = program.getReferenceManager();
+		monitor.initialize(hits.size());
+		for (int i = 0; i < hits.size(); i++) {
+			monitor.checkCanceled();
+			monitor.incrementProgress(1);
+			Address from = space.getAddress(hits.from[i]);
+			refManager.addMemoryReference(from, space.getAddress(hits.to[i]), RefType.DATA,
+				SourceType.ANALYSIS, 0);
+		}
+	}
+
+	private class ScanTask extends RecursiveTask<long[]> {
+		private final byte[] bytes;
+		private final int start;
+		private final int end;
+		private final TaskMonitor monitor;
+
+		ScanTask(byte[] bytes, int start, int end, TaskMonitor monitor) {
+			this.bytes = bytes;
+			this.start = start;
+			this.end = end;
+			this.monitor = monitor;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (end - start <= CHUNK_SIZE) {
+				return scanChunk();
+			}
+			int mid = start + ((end - start) / 2 & ~3);
+			ScanTask left = new ScanTask(bytes, start, mid, monitor);
+			left.fork();
+			long[] right = new ScanTask(bytes, mid, end, monitor).compute();
+			long[] result = left.join();
+			long[] merged = Arrays.copyOf(result, result.length + right.length);
+			System.arraycopy(right, 0, merged, result.length, right.length);
+			return merged;
+		}
+
+		private long[] scanChunk() {
+			if (monitor.isCancelled()) {
+				return new long[0];
+			}
+			long[] hits = new long[16];
+			int count = 0;
+			for (int i = start; i < end; i += 4) {
+				long value = (bytes[i] & 0xffL) | (bytes[i + 1] & 0xffL) << 8 |
+					(bytes[i + 2] & 0xffL) << 16 | (bytes[i + 3] & 0xffL) << 24;
+				if (index.findPeripheral(value) == STM32RegisterIndex.NONE) {
+					continue;
+				}
+				if (count == hits.length) {
+					hits = Arrays.copyOf(hits, count * 2);
+				}
+				hits[count++] = (long) i << 32 | value;
+			}
+			return Arrays.copyOf(hits, count);
+		}
+	}
+}
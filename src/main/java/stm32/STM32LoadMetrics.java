@@ -0,0 +1,148 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import ghidra.app.util.importer.MessageLog;
+
+/**
+ * Wall time per load phase and counts of what each phase created. Phases run one after
+ * another, starting a phase ends the previous one, and a phase that is entered more than
+ * once accumulates its time.
+ */
+public class STM32LoadMetrics {
+
+	public static final String BLOCKS = "blocks";
+	public static final String DATA = "data";
+	public static final String LABELS = "labels";
+	public static final String REFERENCES = "references";
+	public static final String FUNCTIONS = "functions";
+	public static final String CONFLICTS = "conflicts";
+	public static final String FLASH_BYTES = "flash bytes";
+	public static final String ERASED_BYTES = "erased flash bytes";
+
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+	private final Map<String, Long> counters = new LinkedHashMap<>();
+	private final long created = System.nanoTime();
+	private String phase;
+	private long phaseStart;
+
+	/**
+	 * End the current phase, if any, and start timing {@code name}.
+	 */
+	public void begin(String name) {
+		end();
+		phase = name;
+		phaseStart = System.nanoTime();
+	}
+
+	public void end() {
+		if (phase != null) {
+			phases.merge(phase, System.nanoTime() - phaseStart, Long::sum);
+			phase = null;
+		}
+	}
+
+	public void count(String counter, long n) {
+		counters.merge(counter, n, Long::sum);
+	}
+
+	public long getCount(String counter) {
+		return counters.getOrDefault(counter, 0L);
+	}
+
+	public long getMillis(String name) {
+		return TimeUnit.NANOSECONDS.toMillis(phases.getOrDefault(name, 0L));
+	}
+
+	public long getTotalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - created);
+	}
+
+	/**
+	 * Append one line per phase and one line of counters to the import log.
+	 */
+	public void report(MessageLog log) {
+		end();
+		StringBuilder sb = new StringBuilder("Load took " + getTotalMillis() + " ms:");
+		for (String name : phases.keySet()) {
+			sb.append(String.format("%n  %-20s %6d ms", name, getMillis(name)));
+		}
+		log.appendMsg(sb.toString());
+		StringJoiner counts = new StringJoiner(", ", "Created ", "");
+		counters.forEach((name, n) -> counts.add(n + " " + name));
+		log.appendMsg(counts.toString());
+	}
+
+	public String toJson(String program) {
+		end();
+		StringBuilder sb = new StringBuilder("{\n");
+		sb.append("  \"program\": ").append(quote(program)).append(",\n");
+		sb.append("  \"total_ms\": ").append(getTotalMillis()).append(",\n");
+		sb.append("  \"phases_ms\": {");
+		appendMap(sb, phases, true);
+		sb.append("},\n  \"counters\": {");
+		appendMap(sb, counters, false);
+		sb.append("}\n}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Write the metrics as JSON. If {@code file} is a directory the file is named after the
+	 * program, so one directory can collect the metrics of a whole batch import.
+	 */
+	public File writeJson(File file, String program) throws IOException {
+		if (file.isDirectory()) {
+			file = new File(file, program + ".metrics.json");
+		}
+		Files.write(file.toPath(), toJson(program).getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static void appendMap(StringBuilder sb, Map<String, Long> map, boolean nanos) {
+		String sep = "";
+		for (Map.Entry<String, Long> entry : map.entrySet()) {
+			long value = nanos ? TimeUnit.NANOSECONDS.toMillis(entry.getValue()) : entry.getValue();
+			sb.append(sep).append("\n    ").append(quote(entry.getKey())).append(": ").append(
+				value);
+			sep = ",";
+		}
+		if (!map.isEmpty()) {
+			sb.append("\n  ");
+		}
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,566 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+
+import ghidra.app.cmd.disassemble.DisassembleCommand;
+import ghidra.app.cmd.function.CreateFunctionCmd;
+import ghidra.app.util.importer.MessageLog;
+import ghidra.framework.store.LockException;
+import ghidra.program.model.address.Address;
+import ghidra.program.model.address.AddressOverflowException;
+import ghidra.program.model.address.AddressSet;
+import ghidra.program.model.address.AddressSpace;
+import ghidra.program.model.data.*;
+import ghidra.program.model.lang.Register;
+import ghidra.program.model.listing.*;
+import ghidra.program.model.mem.Memory;
+import ghidra.program.model.mem.MemoryBlock;
+import ghidra.program.model.mem.MemoryConflictException;
+import ghidra.program.model.symbol.*;
+import ghidra.program.model.util.CodeUnitInsertionException;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.exception.InvalidInputException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Everything the loader wants to create in a program, collected as plain records before
+ * anything is written. Duplicates are dropped as they are added, so {@link #apply} can
+ * write straight through the {@link Memory}, {@link SymbolTable}, {@link Listing} and
+ * {@link ReferenceManager} in one pass without relying on exceptions for conflicts.
+ */
+public class STM32LoadPlan {
+
+	public static class BlockSpec {
+		public final String name;
+		public final long start;
+		public final long size;
+		public final boolean read;
+		public final boolean write;
+		public final boolean execute;
+		public final boolean isVolatile;
+		// Source of a byte-mapped block, or -1
+		public final long mappedStart;
+		// Initialized to zero rather than left uninitialized
+		public final boolean zeroFilled;
+
+		BlockSpec(String name, long start, long size, boolean read, boolean write,
+				boolean execute, boolean isVolatile, long mappedStart, boolean zeroFilled) {
+			this.name = name;
+			this.start = start;
+			this.size = size;
+			this.read = read;
+			this.write = write;
+			this.execute = execute;
+			this.isVolatile = isVolatile;
+			this.mappedStart = mappedStart;
+			this.zeroFilled = zeroFilled;
+		}
+
+		long end() {
+			return start + size - 1;
+		}
+	}
+
+	public static class LabelSpec {
+		public final long addr;
+		public final String name;
+		public final boolean primary;
+
+		LabelSpec(long addr, String name, boolean primary) {
+			this.addr = addr;
+			this.name = name;
+			this.primary = primary;
+		}
+	}
+
+	public static class ReferenceSpec {
+		public final long from;
+		public final long to;
+
+		ReferenceSpec(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final List<BlockSpec> blocks = new ArrayList<>();
+	private final Map<String, LabelSpec> labels = new LinkedHashMap<>();
+	private final SortedSet<Long> dwords = new TreeSet<>();
+	private final SortedMap<Long, DataType> data = new TreeMap<>();
+	private final Map<Long, ReferenceSpec> references = new LinkedHashMap<>();
+	private final SortedSet<Long> functions = new TreeSet<>();
+	// Blocks dropped because they overlapped one already in the plan
+	private int conflicts;
+
+	/**
+	 * Add an uninitialized block. Blocks that overlap one already in the plan are dropped.
+	 *
+	 * @return false if the block overlapped and was dropped
+	 */
+	public boolean addBlock(String name, long start, long size, boolean read, boolean write,
+			boolean execute) {
+		return addBlock(name, start, size, read, write, execute, false);
+	}
+
+	/**
+	 * Add an uninitialized block, marked volatile if it holds device registers.
+	 *
+	 * @return false if the block overlapped and was dropped
+	 */
+	public boolean addBlock(String name, long start, long size, boolean read, boolean write,
+			boolean execute, boolean isVolatile) {
+		return addBlock(
+			new BlockSpec(name, start, size, read, write, execute, isVolatile, -1, false));
+	}
+
+	/**
+	 * Add a block that shows the bytes at {@code mappedStart} without copying them, such as
+	 * RAM initialized from flash by the startup code.
+	 *
+	 * @return false if the block overlapped and was dropped
+	 */
+	public boolean addByteMappedBlock(String name, long start, long size, long mappedStart,
+			boolean read, boolean write, boolean execute) {
+		return addBlock(
+			new BlockSpec(name, start, size, read, write, execute, false, mappedStart, false));
+	}
+
+	/**
+	 * Add an initialized block filled with zeros.
+	 *
+	 * @return false if the block overlapped and was dropped
+	 */
+	public boolean addZeroFilledBlock(String name, long start, long size, boolean read,
+			boolean write, boolean execute) {
+		return addBlock(
+			new BlockSpec(name, start, size, read, write, execute, false, -1, true));
+	}
+
+	private boolean addBlock(BlockSpec block) {
+		for (BlockSpec other : blocks) {
+			if (block.start <= other.end() && other.start <= block.end()) {
+				conflicts++;
+				return false;
+			}
+		}
+		blocks.add(block);
+		return true;
+	}
+
+	/**
+	 * Add a label. Whitespace is not valid in a symbol name and is replaced, and a label that
+	 * already exists at the same address is dropped.
+	 */
+	public void addLabel(long addr, String name, boolean primary) {
+		name = name.trim().replaceAll("\\s+", "_");
+		String key = Long.toHexString(addr) + ":" + name;
+		LabelSpec existing = labels.get(key);
+		if (existing == null || (primary && !existing.primary)) {
+			labels.put(key, new LabelSpec(addr, name, primary));
+		}
+	}
+
+	public void addDword(long addr) {
+		dwords.add(addr);
+	}
+
+	/**
+	 * Add a data item of any type, such as a peripheral structure. The type is added to the
+	 * program's data type manager when the plan is applied.
+	 */
+	public void addData(long addr, DataType dataType) {
+		data.put(addr, dataType);
+	}
+
+	/**
+	 * Add a DATA reference. Only one reference is kept per source address, matching the
+	 * single operand of the DWORD it is placed on.
+	 */
+	public void addReference(long from, long to) {
+		references.put(from, new ReferenceSpec(from, to));
+	}
+
+	/**
+	 * Add a Thumb function entry point. The address must already have bit 0 cleared.
+	 */
+	public void addFunction(long addr) {
+		functions.add(addr);
+	}
+
+	public List<BlockSpec> getBlocks() {
+		return Collections.unmodifiableList(blocks);
+	}
+
+	public Collection<LabelSpec> getLabels() {
+		return Collections.unmodifiableCollection(labels.values());
+	}
+
+	public SortedSet<Long> getDwords() {
+		return Collections.unmodifiableSortedSet(dwords);
+	}
+
+	public SortedMap<Long, DataType> getData() {
+		return Collections.unmodifiableSortedMap(data);
+	}
+
+	public Collection<ReferenceSpec> getReferences() {
+		return Collections.unmodifiableCollection(references.values());
+	}
+
+	public SortedSet<Long> getFunctions() {
+		return Collections.unmodifiableSortedSet(functions);
+	}
+
+	public int getConflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * The part of this plan that a program built from {@code previous} is missing once the
+	 * code units in the changed ranges have been cleared: everything inside those ranges, and
+	 * everything that is new. Blocks are left out, the memory map of a program is never
+	 * updated, see {@link #hasSameBlocks}.
+	 *
+	 * @param changed tests whether an address lies in a changed range
+	 */
+	public STM32LoadPlan getUpdate(STM32LoadPlan previous, LongPredicate changed) {
+		STM32LoadPlan update = new STM32LoadPlan();
+		for (Map.Entry<String, LabelSpec> entry : labels.entrySet()) {
+			LabelSpec label = entry.getValue();
+			LabelSpec old = previous.labels.get(entry.getKey());
+			if (old == null || old.primary != label.primary || changed.test(label.addr)) {
+				update.labels.put(entry.getKey(), label);
+			}
+		}
+		for (long addr : dwords) {
+			if (!previous.dwords.contains(addr) || changed.test(addr)) {
+				update.dwords.add(addr);
+			}
+		}
+		for (Map.Entry<Long, DataType> entry : data.entrySet()) {
+			DataType old = previous.data.get(entry.getKey());
+			if (old == null || !old.getName().equals(entry.getValue().getName()) ||
+				changed.test(entry.getKey())) {
+				update.data.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (ReferenceSpec reference : references.values()) {
+			ReferenceSpec old = previous.references.get(reference.from);
+			if (old == null || old.to != reference.to || changed.test(reference.from)) {
+				update.references.put(reference.from, reference);
+			}
+		}
+		for (long addr : functions) {
+			if (!previous.functions.contains(addr) || changed.test(addr)) {
+				update.functions.add(addr);
+			}
+		}
+		return update;
+	}
+
+	/**
+	 * @return the labels of {@code previous} that this plan no longer creates
+	 */
+	public List<LabelSpec> getRemovedLabels(STM32LoadPlan previous) {
+		List<LabelSpec> removed = new ArrayList<>();
+		for (Map.Entry<String, LabelSpec> entry : previous.labels.entrySet()) {
+			if (!labels.containsKey(entry.getKey())) {
+				removed.add(entry.getValue());
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the function entry points of {@code previous} that this plan no longer has
+	 */
+	public SortedSet<Long> getRemovedFunctions(STM32LoadPlan previous) {
+		SortedSet<Long> removed = new TreeSet<>(previous.functions);
+		removed.removeAll(functions);
+		return removed;
+	}
+
+	/**
+	 * @return true if both plans lay out the same memory blocks
+	 */
+	public boolean hasSameBlocks(STM32LoadPlan previous) {
+		if (blocks.size() != previous.blocks.size()) {
+			return false;
+		}
+		for (int i = 0; i < blocks.size(); i++) {
+			BlockSpec a = blocks.get(i);
+			BlockSpec b = previous.blocks.get(i);
+			if (!a.name.equals(b.name) || a.start != b.start || a.size != b.size ||
+				a.mappedStart != b.mappedStart || a.zeroFilled != b.zeroFilled) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the plan for {@link STM32PlanCache}. Data types are written by name since they
+	 * belong to the data type manager of the program the plan was built for.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(blocks.size());
+		for (BlockSpec block : blocks) {
+			out.writeUTF(block.name);
+			out.writeLong(block.start);
+			out.writeLong(block.size);
+			out.writeBoolean(block.read);
+			out.writeBoolean(block.write);
+			out.writeBoolean(block.execute);
+			out.writeBoolean(block.isVolatile);
+			out.writeLong(block.mappedStart);
+			out.writeBoolean(block.zeroFilled);
+		}
+		out.writeInt(labels.size());
+		for (LabelSpec label : labels.values()) {
+			out.writeLong(label.addr);
+			out.writeUTF(label.name);
+			out.writeBoolean(label.primary);
+		}
+		writeLongs(out, dwords);
+		out.writeInt(data.size());
+		for (Map.Entry<Long, DataType> entry : data.entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeUTF(entry.getValue().getName());
+		}
+		out.writeInt(references.size());
+		for (ReferenceSpec reference : references.values()) {
+			out.writeLong(reference.from);
+			out.writeLong(reference.to);
+		}
+		writeLongs(out, functions);
+		out.writeInt(conflicts);
+	}
+
+	/**
+	 * Read a plan written by {@link #write}.
+	 *
+	 * @param types finds the data type with a given name in the new program, or returns null
+	 * @throws IOException if the plan is damaged or one of its data types can't be found
+	 */
+	static STM32LoadPlan read(DataInputStream in, Function<String, DataType> types)
+			throws IOException {
+		STM32LoadPlan plan = new STM32LoadPlan();
+		for (int i = in.readInt(); i > 0; i--) {
+			plan.blocks.add(new BlockSpec(in.readUTF(), in.readLong(), in.readLong(),
+				in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean(),
+				in.readLong(), in.readBoolean()));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			long addr = in.readLong();
+			plan.addLabel(addr, in.readUTF(), in.readBoolean());
+		}
+		readLongs(in, plan.dwords);
+		for (int i = in.readInt(); i > 0; i--) {
+			long addr = in.readLong();
+			String name = in.readUTF();
+			DataType dataType = types.apply(name);
+			if (dataType == null) {
+				throw new IOException("No data type " + name);
+			}
+			plan.data.put(addr, dataType);
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			plan.addReference(in.readLong(), in.readLong());
+		}
+		readLongs(in, plan.functions);
+		plan.conflicts = in.readInt();
+		return plan;
+	}
+
+	/**
+	 * @return the program's copy of {@code dataType}, a structure left by an earlier import
+	 * is reused as is
+	 */
+	private static DataType resolve(DataTypeManager dtm, DataType dataType) {
+		DataType existing = dtm.getDataType(dataType.getCategoryPath(), dataType.getName());
+		return existing != null ? existing
+				: dtm.addDataType(dataType, DataTypeConflictHandler.DEFAULT_HANDLER);
+	}
+
+	private static void writeLongs(DataOutputStream out, Collection<Long> values)
+			throws IOException {
+		out.writeInt(values.size());
+		for (long value : values) {
+			out.writeLong(value);
+		}
+	}
+
+	private static void readLongs(DataInputStream in, Collection<Long> values)
+			throws IOException {
+		for (int i = in.readInt(); i > 0; i--) {
+			values.add(in.readLong());
+		}
+	}
+
+	/**
+	 * Write the plan into the program: blocks first, then data, labels and references, and
+	 * finally the functions, which are disassembled and created as one set.
+	 */
+	public void apply(Program program, TaskMonitor monitor, MessageLog log)
+			throws CancelledException {
+		apply(program, monitor, log, new STM32LoadMetrics());
+	}
+
+	/**
+	 * Write the plan into the program, timing each step and counting what was created.
+	 */
+	public void apply(Program program, TaskMonitor monitor, MessageLog log,
+			STM32LoadMetrics metrics) throws CancelledException {
+		AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+		metrics.count(STM32LoadMetrics.CONFLICTS, conflicts);
+
+		metrics.begin("memory map");
+		monitor.setMessage("Creating memory blocks...");
+		Memory mem = program.getMemory();
+		for (BlockSpec spec : blocks) {
+			monitor.checkCanceled();
+			try {
+				Address start = space.getAddress(spec.start);
+				MemoryBlock block;
+				if (spec.mappedStart >= 0) {
+					block = mem.createByteMappedBlock(spec.name, start,
+						space.getAddress(spec.mappedStart), spec.size);
+				}
+				else if (spec.zeroFilled) {
+					block = mem.createInitializedBlock(spec.name, start, spec.size, (byte) 0,
+						monitor, false);
+				}
+				else {
+					block = mem.createUninitializedBlock(spec.name, start, spec.size, false);
+				}
+				block.setRead(spec.read);
+				block.setWrite(spec.write);
+				block.setExecute(spec.execute);
+				block.setVolatile(spec.isVolatile);
+				metrics.count(STM32LoadMetrics.BLOCKS, 1);
+			}
+			catch (LockException | MemoryConflictException | AddressOverflowException e) {
+				log.appendMsg("Failed to create block " + spec.name + ": " + e.getMessage());
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+			}
+		}
+
+		metrics.begin("data");
+		monitor.setMessage("Creating data...");
+		Listing listing = program.getListing();
+		for (long addr : dwords) {
+			monitor.checkCanceled();
+			try {
+				listing.createData(space.getAddress(addr), DWordDataType.dataType);
+				metrics.count(STM32LoadMetrics.DATA, 1);
+			}
+			catch (CodeUnitInsertionException e) {
+				log.appendMsg(String.format("Failed to create DWORD at 0x%x: %s", addr,
+					e.getMessage()));
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+			}
+		}
+		DataTypeManager dtm = program.getDataTypeManager();
+		Map<DataType, DataType> resolved = new IdentityHashMap<>();
+		for (Map.Entry<Long, DataType> entry : data.entrySet()) {
+			monitor.checkCanceled();
+			try {
+				DataType dataType = resolved.computeIfAbsent(entry.getValue(),
+					type -> resolve(dtm, type));
+				listing.createData(space.getAddress(entry.getKey()), dataType);
+				metrics.count(STM32LoadMetrics.DATA, 1);
+			}
+			catch (CodeUnitInsertionException e) {
+				log.appendMsg(String.format("Failed to create %s at 0x%x: %s",
+					entry.getValue().getName(), entry.getKey(), e.getMessage()));
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+			}
+		}
+
+		metrics.begin("labels");
+		monitor.setMessage("Creating labels...");
+		SymbolTable symbolTable = program.getSymbolTable();
+		monitor.initialize(labels.size());
+		for (LabelSpec spec : labels.values()) {
+			monitor.checkCanceled();
+			monitor.incrementProgress(1);
+			try {
+				Symbol symbol =
+					symbolTable.createLabel(space.getAddress(spec.addr), spec.name,
+						SourceType.IMPORTED);
+				if (spec.primary && !symbol.isPrimary()) {
+					symbol.setPrimary();
+				}
+				metrics.count(STM32LoadMetrics.LABELS, 1);
+			}
+			catch (InvalidInputException e) {
+				log.appendMsg("Invalid label " + spec.name + ": " + e.getMessage());
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+			}
+		}
+
+		metrics.begin("references");
+		monitor.setMessage("Creating references...");
+		ReferenceManager refManager = program.getReferenceManager();
+		for (ReferenceSpec spec : references.values()) {
+			monitor.checkCanceled();
+			refManager.addMemoryReference(space.getAddress(spec.from), space.getAddress(spec.to),
+				RefType.DATA, SourceType.IMPORTED, 0);
+		}
+		metrics.count(STM32LoadMetrics.REFERENCES, references.size());
+
+		if (functions.isEmpty()) {
+			metrics.end();
+			return;
+		}
+		metrics.begin("functions");
+		monitor.setMessage("Creating functions...");
+		AddressSet entries = new AddressSet();
+		FunctionManager functionManager = program.getFunctionManager();
+		// Reimports and cached plans may name entry points that already have a function
+		List<Address> created = new ArrayList<>();
+		Register tmode = program.getRegister("TMode");
+		for (long addr : functions) {
+			monitor.checkCanceled();
+			Address entry = space.getAddress(addr);
+			entries.add(entry);
+			if (functionManager.getFunctionAt(entry) == null) {
+				created.add(entry);
+			}
+			symbolTable.addExternalEntryPoint(entry);
+			// Cortex-M only runs Thumb code, disassembly must not start in ARM mode
+			if (tmode != null) {
+				try {
+					program.getProgramContext().setValue(tmode, entry, entry, BigInteger.ONE);
+				}
+				catch (ContextChangeException e) {
+					log.appendMsg("Unable to set Thumb mode at " + entry + ": " + e.getMessage());
+				}
+			}
+		}
+		new DisassembleCommand(entries, null, true).applyTo(program, monitor);
+		new CreateFunctionCmd(entries).applyTo(program, monitor);
+		created.removeIf(entry -> functionManager.getFunctionAt(entry) == null);
+		metrics.count(STM32LoadMetrics.FUNCTIONS, created.size());
+		metrics.end();
+	}
+}
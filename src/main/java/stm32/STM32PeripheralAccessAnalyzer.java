@@ -0,0 +1,65 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+
+import ghidra.app.services.*;
+import ghidra.app.util.importer.MessageLog;
+import ghidra.program.model.address.AddressSetView;
+import ghidra.program.model.listing.Program;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Keeps the {@link STM32PeripheralAccessMap} of the program up to date. Runs after the rest
+ * of analysis so the register references from constant propagation are in place, builds the
+ * map the first time and afterwards only redoes the functions in the analyzed set.
+ */
+public class STM32PeripheralAccessAnalyzer extends AbstractAnalyzer {
+
+	private static final String NAME = "STM32 Peripheral Access Map";
+	private static final String DESCRIPTION =
+		"Records which functions read and write each STM32 peripheral register.";
+
+	public STM32PeripheralAccessAnalyzer() {
+		super(NAME, DESCRIPTION, AnalyzerType.INSTRUCTION_ANALYZER);
+		setPriority(AnalysisPriority.LOW_PRIORITY);
+		setSupportsOneTimeAnalysis();
+	}
+
+	@Override
+	public boolean canAnalyze(Program program) {
+		return STM32RegisterLabeler.getDevice(program) != null;
+	}
+
+	@Override
+	public boolean added(Program program, AddressSetView set, TaskMonitor monitor,
+			MessageLog log) throws CancelledException {
+		STM32RegisterIndex index;
+		try {
+			index = new STM32RegisterIndex(
+				STM32RegisterLabeler.getDevice(program).getFamily().getPeripherals());
+		}
+		catch (IOException e) {
+			log.appendMsg(NAME, "No peripheral map: " + e.getMessage());
+			return false;
+		}
+		monitor.setMessage("Mapping peripheral accesses...");
+		STM32PeripheralAccessMap.refresh(program, index, set, monitor);
+		return true;
+	}
+}
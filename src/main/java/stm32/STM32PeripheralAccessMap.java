@@ -0,0 +1,486 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import ghidra.program.model.address.*;
+import ghidra.program.model.listing.*;
+import ghidra.program.model.symbol.*;
+import ghidra.program.model.util.ObjectPropertyMap;
+import ghidra.util.ObjectStorage;
+import ghidra.util.Saveable;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Which functions read and which write each peripheral register, kept in the program's user
+ * data so it is built once and then only updated for the functions whose references change.
+ * <p>
+ * Functions are numbered in the order they are first seen, and every register that is
+ * accessed at all has a bitset of its readers and one of its writers over those numbers.
+ * Registers are kept by address in a sorted array, so finding the functions that touch a
+ * register is a binary search and a walk over two bitsets. Only READ and WRITE references
+ * from code inside a function count, the DATA references from literal pools don't say how
+ * the register is used.
+ */
+public class STM32PeripheralAccessMap implements Saveable {
+
+	public static final String OWNER = "STM32";
+	public static final String PROPERTY = "Peripheral Access Map";
+
+	private static final int SCHEMA_VERSION = 1;
+	private static final int REMOVED = -1;
+
+	// Lock per program around load, update and store, see refresh
+	private static final Map<Program, Object> LOCKS = new WeakHashMap<>();
+
+	// Part number and SVD stamp of the register map the addresses were resolved with
+	private String stamp;
+	// Entry point of each function number, REMOVED once the function is gone
+	private long[] functions = new long[16];
+	private int functionCount;
+	// Accessed register addresses in ascending order and their readers and writers
+	private long[] registers = new long[16];
+	private BitSet[] readers = new BitSet[16];
+	private BitSet[] writers = new BitSet[16];
+	private int registerCount;
+
+	// Function number by entry point, rebuilt on demand
+	private Map<Long, Integer> functionIds;
+
+	/**
+	 * For {@link Saveable} restore only.
+	 */
+	public STM32PeripheralAccessMap() {
+	}
+
+	STM32PeripheralAccessMap(String stamp) {
+		this.stamp = stamp;
+	}
+
+	/**
+	 * @return the stamp a map built for the program's current register map must have
+	 */
+	public static String getStamp(Program program, STM32RegisterIndex index) {
+		STM32Device device = STM32RegisterLabeler.getDevice(program);
+		return (device != null ? device.getPartNumber() : "") + " " +
+			index.getDatabase().getSourceStamp();
+	}
+
+	/**
+	 * @return the map stored with the program, or null if there is none or it was built with
+	 * a different register map
+	 */
+	public static STM32PeripheralAccessMap load(Program program, STM32RegisterIndex index) {
+		ProgramUserData userData = program.getProgramUserData();
+		ObjectPropertyMap property = userData.getObjectProperty(OWNER, PROPERTY,
+			STM32PeripheralAccessMap.class, false);
+		if (property == null) {
+			return null;
+		}
+		Object map = property.getObject(program.getImageBase());
+		if (!(map instanceof STM32PeripheralAccessMap) ||
+			!getStamp(program, index).equals(((STM32PeripheralAccessMap) map).stamp)) {
+			return null;
+		}
+		return (STM32PeripheralAccessMap) map;
+	}
+
+	/**
+	 * Store the map with the program, replacing the one stored before.
+	 */
+	public void store(Program program) {
+		ProgramUserData userData = program.getProgramUserData();
+		int id = userData.startTransaction();
+		try {
+			userData.getObjectProperty(OWNER, PROPERTY, STM32PeripheralAccessMap.class,
+				true).add(program.getImageBase(), this);
+		}
+		finally {
+			userData.endTransaction(id);
+		}
+	}
+
+	/**
+	 * Load the stored map and bring it up to date with the references from {@code changed},
+	 * or build it if there is none, and store the result. The analyzer and
+	 * {@link STM32PeripheralAccessPlugin} both do this, from different threads, so it happens
+	 * under a lock per program, otherwise whichever stored last would drop the other's update.
+	 *
+	 * @param changed addresses whose references may have changed, or null to rebuild
+	 */
+	public static STM32PeripheralAccessMap refresh(Program program, STM32RegisterIndex index,
+			AddressSetView changed, TaskMonitor monitor) throws CancelledException {
+		synchronized (getLock(program)) {
+			STM32PeripheralAccessMap map = changed != null ? load(program, index) : null;
+			if (map == null) {
+				map = build(program, index, monitor);
+			}
+			else if (!changed.isEmpty()) {
+				map.update(program, index, changed, monitor);
+			}
+			else {
+				return map;
+			}
+			map.store(program);
+			return map;
+		}
+	}
+
+	private static Object getLock(Program program) {
+		synchronized (LOCKS) {
+			return LOCKS.computeIfAbsent(program, p -> new Object());
+		}
+	}
+
+	/**
+	 * Build the map from every reference into the peripherals.
+	 */
+	public static STM32PeripheralAccessMap build(Program program, STM32RegisterIndex index,
+			TaskMonitor monitor) throws CancelledException {
+		STM32PeripheralAccessMap map = new STM32PeripheralAccessMap(getStamp(program, index));
+		ReferenceManager refManager = program.getReferenceManager();
+		FunctionManager functionManager = program.getFunctionManager();
+		monitor.setMessage("Mapping peripheral accesses...");
+		// Only the destinations inside peripherals are visited, not every reference
+		for (Address to : refManager.getReferenceDestinationIterator(
+			STM32RegisterLabeler.getPeripheralSet(program, index.getDatabase()), true)) {
+			monitor.checkCanceled();
+			int entry = index.findRegister(to.getOffset());
+			if (entry == STM32RegisterIndex.NONE) {
+				continue;
+			}
+			Function last = null;
+			for (Reference ref : refManager.getReferencesTo(to)) {
+				RefType type = ref.getReferenceType();
+				if (!type.isRead() && !type.isWrite()) {
+					continue;
+				}
+				Address from = ref.getFromAddress();
+				// References to one register tend to come from the same function in a row
+				if (last == null || !last.getBody().contains(from)) {
+					last = functionManager.getFunctionContaining(from);
+				}
+				if (last != null) {
+					map.add(index.getRegisterAddress(entry), last.getEntryPoint().getOffset(),
+						type.isRead(), type.isWrite());
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Recompute the accesses of every function that overlaps {@code changed}, and drop
+	 * functions whose entry point is in it but which no longer exist.
+	 */
+	public void update(Program program, STM32RegisterIndex index, AddressSetView changed,
+			TaskMonitor monitor) throws CancelledException {
+		FunctionManager functionManager = program.getFunctionManager();
+		for (int id = 0; id < functionCount; id++) {
+			if (functions[id] == REMOVED) {
+				continue;
+			}
+			Address entryPoint = program.getImageBase().getNewAddress(functions[id]);
+			if (changed.contains(entryPoint) &&
+				functionManager.getFunctionAt(entryPoint) == null) {
+				remove(functions[id]);
+			}
+		}
+		AddressSetView peripherals =
+			STM32RegisterLabeler.getPeripheralSet(program, index.getDatabase());
+		ReferenceManager refManager = program.getReferenceManager();
+		Iterator<Function> it = functionManager.getFunctionsOverlapping(changed);
+		while (it.hasNext()) {
+			monitor.checkCanceled();
+			Function function = it.next();
+			long entryPoint = function.getEntryPoint().getOffset();
+			Integer id = getFunctionIds().get(entryPoint);
+			if (id != null) {
+				clear(id);
+			}
+			for (Address from : refManager.getReferenceSourceIterator(function.getBody(),
+				true)) {
+				for (Reference ref : refManager.getReferencesFrom(from)) {
+					RefType type = ref.getReferenceType();
+					Address to = ref.getToAddress();
+					if ((!type.isRead() && !type.isWrite()) || !peripherals.contains(to)) {
+						continue;
+					}
+					int entry = index.findRegister(to.getOffset());
+					if (entry != STM32RegisterIndex.NONE) {
+						add(index.getRegisterAddress(entry), entryPoint, type.isRead(),
+							type.isWrite());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record that the function at {@code function} reads and/or writes {@code register}.
+	 */
+	void add(long register, long function, boolean read, boolean write) {
+		int id = getFunctionIds().computeIfAbsent(function, f -> {
+			if (functionCount == functions.length) {
+				functions = Arrays.copyOf(functions, Math.max(16, functionCount * 2));
+			}
+			functions[functionCount] = f;
+			return functionCount++;
+		});
+		int r = Arrays.binarySearch(registers, 0, registerCount, register);
+		if (r < 0) {
+			r = -r - 1;
+			if (registerCount == registers.length) {
+				int capacity = Math.max(16, registerCount * 2);
+				registers = Arrays.copyOf(registers, capacity);
+				readers = Arrays.copyOf(readers, capacity);
+				writers = Arrays.copyOf(writers, capacity);
+			}
+			System.arraycopy(registers, r, registers, r + 1, registerCount - r);
+			System.arraycopy(readers, r, readers, r + 1, registerCount - r);
+			System.arraycopy(writers, r, writers, r + 1, registerCount - r);
+			registers[r] = register;
+			readers[r] = new BitSet();
+			writers[r] = new BitSet();
+			registerCount++;
+		}
+		if (read) {
+			readers[r].set(id);
+		}
+		if (write) {
+			writers[r].set(id);
+		}
+	}
+
+	/**
+	 * Forget the function at {@code function} and its accesses.
+	 */
+	void remove(long function) {
+		Integer id = getFunctionIds().remove(function);
+		if (id != null) {
+			clear(id);
+			functions[id] = REMOVED;
+		}
+	}
+
+	private void clear(int id) {
+		for (int r = 0; r < registerCount; r++) {
+			readers[r].clear(id);
+			writers[r].clear(id);
+		}
+	}
+
+	private Map<Long, Integer> getFunctionIds() {
+		if (functionIds == null) {
+			functionIds = new HashMap<>();
+			for (int id = 0; id < functionCount; id++) {
+				if (functions[id] != REMOVED) {
+					functionIds.put(functions[id], id);
+				}
+			}
+		}
+		return functionIds;
+	}
+
+	/**
+	 * @return the addresses of the registers that are read or written anywhere, in order
+	 */
+	public long[] getRegisters() {
+		long[] accessed = new long[registerCount];
+		int n = 0;
+		for (int r = 0; r < registerCount; r++) {
+			if (!readers[r].isEmpty() || !writers[r].isEmpty()) {
+				accessed[n++] = registers[r];
+			}
+		}
+		return Arrays.copyOf(accessed, n);
+	}
+
+	/**
+	 * @return entry points of the functions that read the register at {@code register}
+	 */
+	public long[] getReaders(long register) {
+		int r = Arrays.binarySearch(registers, 0, registerCount, register);
+		return r < 0 ? new long[0] : toEntryPoints(readers[r]);
+	}
+
+	/**
+	 * @return entry points of the functions that write the register at {@code register}
+	 */
+	public long[] getWriters(long register) {
+		int r = Arrays.binarySearch(registers, 0, registerCount, register);
+		return r < 0 ? new long[0] : toEntryPoints(writers[r]);
+	}
+
+	/**
+	 * @param write true for the registers the function writes, false for those it reads
+	 * @return addresses of the registers the function at {@code function} accesses
+	 */
+	public long[] getRegisters(long function, boolean write) {
+		Integer id = getFunctionIds().get(function);
+		if (id == null) {
+			return new long[0];
+		}
+		long[] accessed = new long[registerCount];
+		int n = 0;
+		for (int r = 0; r < registerCount; r++) {
+			if ((write ? writers[r] : readers[r]).get(id)) {
+				accessed[n++] = registers[r];
+			}
+		}
+		return Arrays.copyOf(accessed, n);
+	}
+
+	private long[] toEntryPoints(BitSet ids) {
+		long[] entryPoints = new long[ids.cardinality()];
+		int n = 0;
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			entryPoints[n++] = functions[id];
+		}
+		Arrays.sort(entryPoints);
+		return entryPoints;
+	}
+
+	/**
+	 * Find registers by label. {@code USART2->DR} and {@code USART2.DR} are read as
+	 * {@code USART2_DR}, case is ignored and {@code *} matches any run of characters.
+	 *
+	 * @return the addresses of the matching registers, in order
+	 */
+	public static long[] findRegisters(STM32RegisterIndex index, String name) {
+		String label = name.trim().replace("->", "_").replace('.', '_');
+		StringBuilder regex = new StringBuilder();
+		for (String part : label.split("\\*", -1)) {
+			regex.append(regex.length() == 0 ? "" : ".*").append(Pattern.quote(part));
+		}
+		Pattern pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+		long[] found = new long[16];
+		int n = 0;
+		for (int entry = 0; entry < index.getRegisterEntryCount(); entry++) {
+			if (!pattern.matcher(index.getRegisterLabel(entry)).matches()) {
+				continue;
+			}
+			long address = index.getRegisterAddress(entry);
+			if (n > 0 && found[n - 1] == address) {
+				continue;
+			}
+			if (n == found.length) {
+				found = Arrays.copyOf(found, n * 2);
+			}
+			found[n++] = address;
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	@Override
+	public Class<?>[] getObjectStorageFields() {
+		return new Class<?>[] { String.class, long[].class, long[].class, int[].class,
+			long[].class, int[].class, long[].class };
+	}
+
+	@Override
+	public void save(ObjectStorage objStorage) {
+		objStorage.putString(stamp);
+		// Numbers of removed functions are not reused, they are dropped here instead
+		int[] renumber = new int[functionCount];
+		long[] live = new long[functionCount];
+		int n = 0;
+		for (int id = 0; id < functionCount; id++) {
+			renumber[id] = functions[id] == REMOVED ? REMOVED : n;
+			if (functions[id] != REMOVED) {
+				live[n++] = functions[id];
+			}
+		}
+		objStorage.putLongs(Arrays.copyOf(live, n));
+		objStorage.putLongs(Arrays.copyOf(registers, registerCount));
+		saveBitSets(objStorage, readers, renumber);
+		saveBitSets(objStorage, writers, renumber);
+	}
+
+	private void saveBitSets(ObjectStorage objStorage, BitSet[] sets, int[] renumber) {
+		int[] lengths = new int[registerCount];
+		List<long[]> words = new ArrayList<>();
+		int total = 0;
+		for (int r = 0; r < registerCount; r++) {
+			BitSet renumbered = new BitSet();
+			for (int id = sets[r].nextSetBit(0); id >= 0; id = sets[r].nextSetBit(id + 1)) {
+				if (renumber[id] != REMOVED) {
+					renumbered.set(renumber[id]);
+				}
+			}
+			long[] w = renumbered.toLongArray();
+			lengths[r] = w.length;
+			words.add(w);
+			total += w.length;
+		}
+		long[] all = new long[total];
+		int offset = 0;
+		for (long[] w : words) {
+			System.arraycopy(w, 0, all, offset, w.length);
+			offset += w.length;
+		}
+		objStorage.putInts(lengths);
+		objStorage.putLongs(all);
+	}
+
+	@Override
+	public void restore(ObjectStorage objStorage) {
+		stamp = objStorage.getString();
+		functions = objStorage.getLongs();
+		functionCount = functions.length;
+		registers = objStorage.getLongs();
+		registerCount = registers.length;
+		readers = restoreBitSets(objStorage, registerCount);
+		writers = restoreBitSets(objStorage, registerCount);
+		functionIds = null;
+	}
+
+	private static BitSet[] restoreBitSets(ObjectStorage objStorage, int count) {
+		int[] lengths = objStorage.getInts();
+		long[] all = objStorage.getLongs();
+		BitSet[] sets = new BitSet[count];
+		int offset = 0;
+		for (int r = 0; r < count; r++) {
+			sets[r] = BitSet.valueOf(Arrays.copyOfRange(all, offset, offset + lengths[r]));
+			offset += lengths[r];
+		}
+		return sets;
+	}
+
+	@Override
+	public int getSchemaVersion() {
+		return SCHEMA_VERSION;
+	}
+
+	@Override
+	public boolean isUpgradeable(int oldSchemaVersion) {
+		return false;
+	}
+
+	@Override
+	public boolean upgrade(ObjectStorage oldObjStorage, int oldSchemaVersion,
+			ObjectStorage currentObjStorage) {
+		return false;
+	}
+
+	@Override
+	public boolean isPrivate() {
+		return false;
+	}
+}
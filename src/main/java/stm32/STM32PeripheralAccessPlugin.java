@@ -0,0 +1,187 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import javax.swing.SwingUtilities;
+
+import ghidra.app.plugin.PluginCategoryNames;
+import ghidra.app.plugin.ProgramPlugin;
+import ghidra.app.plugin.core.misc.MiscellaneousPluginPackage;
+import ghidra.framework.model.*;
+import ghidra.framework.plugintool.PluginInfo;
+import ghidra.framework.plugintool.PluginTool;
+import ghidra.framework.plugintool.util.PluginStatus;
+import ghidra.program.model.address.AddressSet;
+import ghidra.program.model.address.AddressSetView;
+import ghidra.program.model.listing.Program;
+import ghidra.program.util.ChangeManager;
+import ghidra.program.util.ProgramChangeRecord;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.*;
+
+/**
+ * Shows the {@link STM32PeripheralAccessMap} of the current program and keeps the stored map
+ * up to date as references and functions change, by redoing only the functions around the
+ * changed addresses. Changes are collected while the program is the current one and applied
+ * in the background a second after they stop.
+ * <p>
+ * Nothing watches a program while the plugin is disabled or the program is open elsewhere.
+ * The analyzer then only redoes the functions analysis touches, and references edited by hand
+ * in the meantime are missing from the map until it is rebuilt, by undo or by running the
+ * analyzer once over the whole program.
+ */
+//@formatter:off
+@PluginInfo(
+	status = PluginStatus.STABLE,
+	packageName = MiscellaneousPluginPackage.NAME,
+	category = PluginCategoryNames.ANALYSIS,
+	shortDescription = "STM32 peripheral access map",
+	description = "Lists the functions that read and write each STM32 peripheral register " +
+		"and keeps the list up to date as references change."
+)
+//@formatter:on
+public class STM32PeripheralAccessPlugin extends ProgramPlugin implements DomainObjectListener {
+
+	private final STM32PeripheralAccessProvider provider;
+	private final SwingUpdateManager updateManager;
+	// Addresses whose references or functions changed since the map was last updated
+	private final AddressSet changed = new AddressSet();
+	private boolean rebuild;
+
+	public STM32PeripheralAccessPlugin(PluginTool tool) {
+		super(tool, false, false);
+		provider = new STM32PeripheralAccessProvider(this);
+		tool.addComponentProvider(provider, false);
+		updateManager = new SwingUpdateManager(1000, 5000, this::applyChanges);
+	}
+
+	@Override
+	protected void programActivated(Program program) {
+		program.addListener(this);
+		provider.setProgram(program);
+	}
+
+	@Override
+	protected void programDeactivated(Program program) {
+		// What is pending belongs to this program, none of it may carry over to the next one
+		applyChanges();
+		changed.clear();
+		rebuild = false;
+		program.removeListener(this);
+		provider.setProgram(null);
+	}
+
+	@Override
+	protected void dispose() {
+		updateManager.dispose();
+		if (currentProgram != null) {
+			currentProgram.removeListener(this);
+		}
+		tool.removeComponentProvider(provider);
+		super.dispose();
+	}
+
+	@Override
+	public void domainObjectChanged(DomainObjectChangedEvent ev) {
+		// Undo and redo don't say what changed
+		if (ev.containsEvent(DomainObject.DO_OBJECT_RESTORED)) {
+			rebuild = true;
+		}
+		for (int i = 0; i < ev.numRecords(); i++) {
+			DomainObjectChangeRecord record = ev.getChangeRecord(i);
+			switch (record.getEventType()) {
+				case ChangeManager.DOCR_MEM_REFERENCE_ADDED:
+				case ChangeManager.DOCR_MEM_REFERENCE_REMOVED:
+				case ChangeManager.DOCR_MEM_REF_TYPE_CHANGED:
+				case ChangeManager.DOCR_FUNCTION_ADDED:
+				case ChangeManager.DOCR_FUNCTION_REMOVED:
+				case ChangeManager.DOCR_FUNCTION_BODY_CHANGED:
+					// The start is the reference source or the function entry point
+					ProgramChangeRecord change = (ProgramChangeRecord) record;
+					if (change.getStart() != null) {
+						changed.add(change.getStart(),
+							change.getEnd() != null ? change.getEnd() : change.getStart());
+					}
+					break;
+				default:
+					break;
+			}
+		}
+		if (rebuild || !changed.isEmpty()) {
+			updateManager.update();
+		}
+	}
+
+	/**
+	 * Bring the map up to date with the changes seen so far.
+	 */
+	void applyChanges() {
+		Program program = provider.getProgram();
+		STM32RegisterIndex index = provider.getIndex();
+		if (program == null || index == null || (!rebuild && changed.isEmpty())) {
+			return;
+		}
+		if (!provider.isVisible() && provider.getMap() == null) {
+			// Nothing to keep up to date, the map is loaded or built when the window opens
+			changed.clear();
+			rebuild = false;
+			return;
+		}
+		if (rebuild) {
+			rebuild();
+			return;
+		}
+		AddressSet set = new AddressSet(changed);
+		changed.clear();
+		refresh(program, index, set, "Updating peripheral access map", false);
+	}
+
+	/**
+	 * Build the map of the current program from scratch in a background task.
+	 */
+	void rebuild() {
+		Program program = provider.getProgram();
+		STM32RegisterIndex index = provider.getIndex();
+		if (program == null || index == null) {
+			return;
+		}
+		rebuild = false;
+		changed.clear();
+		refresh(program, index, null, "Building peripheral access map", true);
+	}
+
+	/**
+	 * Refresh the stored map in a background task, since the analyzer may be holding it, and
+	 * show the result if the program is still the current one.
+	 *
+	 * @param set addresses whose references changed, or null to rebuild
+	 */
+	private void refresh(Program program, STM32RegisterIndex index, AddressSetView set,
+			String title, boolean canCancel) {
+		new TaskLauncher(new Task(title, canCancel, false, false) {
+			@Override
+			public void run(TaskMonitor monitor) throws CancelledException {
+				STM32PeripheralAccessMap map =
+					STM32PeripheralAccessMap.refresh(program, index, set, monitor);
+				SwingUtilities.invokeLater(() -> {
+					if (provider.getProgram() == program) {
+						provider.setMap(map);
+					}
+				});
+			}
+		}, provider.getComponent());
+	}
+}
@@ -0,0 +1,175 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.awt.BorderLayout;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+
+import ghidra.app.services.GoToService;
+import ghidra.framework.plugintool.ComponentProviderAdapter;
+import ghidra.program.model.address.Address;
+import ghidra.program.model.listing.Function;
+import ghidra.program.model.listing.Program;
+
+/**
+ * Window listing the functions that read and write the registers matching a filter, one row
+ * per access. Double-clicking a row goes to the function.
+ */
+public class STM32PeripheralAccessProvider extends ComponentProviderAdapter {
+
+	private static final String TITLE = "STM32 Peripheral Access";
+	private static final String[] COLUMNS = { "Register", "Address", "Access", "Function" };
+
+	private final STM32PeripheralAccessPlugin plugin;
+	private final JPanel panel = new JPanel(new BorderLayout());
+	private final JTextField filter = new JTextField("*");
+	private final JLabel status = new JLabel(" ");
+	private final DefaultTableModel model = new DefaultTableModel(COLUMNS, 0) {
+		@Override
+		public boolean isCellEditable(int row, int column) {
+			return false;
+		}
+	};
+	private final JTable table = new JTable(model);
+	// Entry point of the function on each row
+	private final List<Address> rowFunctions = new ArrayList<>();
+
+	private Program program;
+	private STM32RegisterIndex index;
+	private STM32PeripheralAccessMap map;
+
+	public STM32PeripheralAccessProvider(STM32PeripheralAccessPlugin plugin) {
+		super(plugin.getTool(), TITLE, plugin.getName());
+		this.plugin = plugin;
+		setTitle(TITLE);
+
+		filter.setToolTipText("Register labels such as USART2->DR or USART*_SR, " +
+			"press Enter to search");
+		filter.addActionListener(e -> query());
+		table.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int row = table.getSelectedRow();
+				if (e.getClickCount() == 2 && row >= 0) {
+					GoToService goTo = plugin.getTool().getService(GoToService.class);
+					if (goTo != null) {
+						goTo.goTo(rowFunctions.get(table.convertRowIndexToModel(row)));
+					}
+				}
+			}
+		});
+		panel.add(filter, BorderLayout.NORTH);
+		panel.add(new JScrollPane(table), BorderLayout.CENTER);
+		panel.add(status, BorderLayout.SOUTH);
+	}
+
+	@Override
+	public JComponent getComponent() {
+		return panel;
+	}
+
+	@Override
+	public void componentShown() {
+		plugin.applyChanges();
+		query();
+	}
+
+	/**
+	 * Show the map of {@code program}, or nothing for null.
+	 */
+	void setProgram(Program program) {
+		this.program = program;
+		index = null;
+		map = null;
+		STM32Device device = program != null ? STM32RegisterLabeler.getDevice(program) : null;
+		if (device != null) {
+			try {
+				index = new STM32RegisterIndex(device.getFamily().getPeripherals());
+				map = STM32PeripheralAccessMap.load(program, index);
+			}
+			catch (IOException e) {
+				index = null;
+			}
+		}
+		if (isVisible()) {
+			query();
+		}
+	}
+
+	Program getProgram() {
+		return program;
+	}
+
+	STM32RegisterIndex getIndex() {
+		return index;
+	}
+
+	STM32PeripheralAccessMap getMap() {
+		return map;
+	}
+
+	void setMap(STM32PeripheralAccessMap map) {
+		this.map = map;
+		if (isVisible()) {
+			query();
+		}
+	}
+
+	private void query() {
+		rowFunctions.clear();
+		model.setRowCount(0);
+		if (index == null) {
+			status.setText("No STM32 peripheral map for this program");
+			return;
+		}
+		if (map == null) {
+			status.setText("Building the peripheral access map...");
+			plugin.rebuild();
+			return;
+		}
+
+		long start = System.nanoTime();
+		List<Object[]> rows = new ArrayList<>();
+		String text = filter.getText().trim();
+		for (long register : STM32PeripheralAccessMap.findRegisters(index,
+			text.isEmpty() ? "*" : text)) {
+			String label = index.getRegisterLabel(index.findRegister(register));
+			addRows(rows, label, register, "read", map.getReaders(register));
+			addRows(rows, label, register, "write", map.getWriters(register));
+		}
+		long elapsed = System.nanoTime() - start;
+		model.setDataVector(rows.toArray(new Object[0][]), COLUMNS);
+		status.setText(String.format("%d accesses in %.1f ms", rows.size(), elapsed / 1e6));
+	}
+
+	private void addRows(List<Object[]> rows, String label, long register, String access,
+			long[] entryPoints) {
+		for (long entryPoint : entryPoints) {
+			Address entry = program.getImageBase().getNewAddress(entryPoint);
+			Function function = program.getFunctionManager().getFunctionAt(entry);
+			rows.add(new Object[] { label, String.format("0x%08x", register), access,
+				function != null ? function.getName() : entry.toString() });
+			rowFunctions.add(entry);
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import generic.jar.ResourceFile;
+import ghidra.framework.Application;
+import stm32.STM32SvdParser.*;
+
+/**
+ * Peripherals, registers and interrupts of one device, read from a CMSIS-SVD file in the
+ * extension's data/svd directory.
+ * <p>
+ * Parsing the XML is only done once per SVD file. The result is compiled into a compact
+ * index in the user cache directory (a string table plus one int array per field) which is
+ * memory-mapped on every later load, so opening a database costs a few small array copies.
+ * Names are decoded from the mapping on first use and interned.
+ */
+public class STM32PeripheralDatabase {
+
+	public static final int ACCESS_READ = 1;
+	public static final int ACCESS_WRITE = 2;
+	public static final int ACCESS_READ_WRITE = ACCESS_READ | ACCESS_WRITE;
+
+	public static final String MODULE_NAME = "stm32";
+
+	private static final int MAGIC = 0x53333250; // "S32P"
+	private static final int FORMAT_VERSION = 1;
+	private static final int NONE = -1;
+
+	private final ByteBuffer buffer;
+	private final long sourceLength;
+	private final long sourceModified;
+	private final int[] stringOffsets;
+	private final String[] strings;
+
+	private final int[] periphName;
+	private final int[] periphGroup;
+	private final int[] periphPrefix;
+	private final int[] periphBase;
+	private final int[] periphSize;
+	private final int[] periphDerived;
+	private final int[] periphRegStart;
+	private final int[] periphRegCount;
+	private final int[] periphIrqStart;
+	private final int[] periphIrqCount;
+
+	private final int[] regName;
+	private final int[] regOffset;
+	private final int[] regSize;
+	private final int[] regAccess;
+
+	private final int[] irqName;
+	private final int[] irqValue;
+
+	private STM32PeripheralDatabase(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+			throw new IOException("Not a peripheral database");
+		}
+		sourceLength = buffer.getLong();
+		sourceModified = buffer.getLong();
+		int stringCount = buffer.getInt();
+		int peripheralCount = buffer.getInt();
+		int registerCount = buffer.getInt();
+		int interruptCount = buffer.getInt();
+
+		stringOffsets = readInts(buffer, stringCount + 1);
+		strings = new String[stringCount];
+		buffer.position(buffer.position() + stringOffsets[stringCount]);
+
+		periphName = readInts(buffer, peripheralCount);
+		periphGroup = readInts(buffer, peripheralCount);
+		periphPrefix = readInts(buffer, peripheralCount);
+		periphBase = readInts(buffer, peripheralCount);
+		periphSize = readInts(buffer, peripheralCount);
+		periphDerived = readInts(buffer, peripheralCount);
+		periphRegStart = readInts(buffer, peripheralCount);
+		periphRegCount = readInts(buffer, peripheralCount);
+		periphIrqStart = readInts(buffer, peripheralCount);
+		periphIrqCount = readInts(buffer, peripheralCount);
+
+		regName = readInts(buffer, registerCount);
+		regOffset = readInts(buffer, registerCount);
+		regSize = readInts(buffer, registerCount);
+		regAccess = readInts(buffer, registerCount);
+
+		irqName = readInts(buffer, interruptCount);
+		irqValue = readInts(buffer, interruptCount);
+	}
+
+	/**
+	 * Open the database for an SVD file shipped in this extension's data/svd directory.
+	 */
+	public static STM32PeripheralDatabase load(String svdName) throws IOException {
+		ResourceFile svd = Application.getModuleDataFile(MODULE_NAME, "svd/" + svdName);
+		File cacheDir = new File(Application.getUserCacheDirectory(), "stm32-svd");
+		return open(svd, cacheDir);
+	}
+
+	/**
+	 * Open the compiled index of {@code svd} from {@code cacheDir}, compiling it first if it is
+	 * missing or older than the SVD file.
+	 */
+	public static STM32PeripheralDatabase open(ResourceFile svd, File cacheDir)
+			throws IOException {
+		File cache = new File(cacheDir, svd.getName() + ".idx");
+		if (cache.isFile()) {
+			try {
+				ByteBuffer mapped = map(cache);
+				if (isCurrent(mapped, svd)) {
+					return new STM32PeripheralDatabase(mapped);
+				}
+			}
+			catch (IOException e) {
+				// Stale or damaged, fall through and rebuild it
+			}
+		}
+
+		byte[] compiled;
+		try (InputStream in = svd.getInputStream()) {
+			compiled = compile(in, svd.length(), svd.lastModified());
+		}
+		try {
+			write(cacheDir, cache, compiled);
+			return new STM32PeripheralDatabase(map(cache));
+		}
+		catch (IOException e) {
+			// The cache is only an optimization, keep going without it
+			return new STM32PeripheralDatabase(ByteBuffer.wrap(compiled));
+		}
+	}
+
+	private static boolean isCurrent(ByteBuffer mapped, ResourceFile svd) {
+		ByteBuffer header = mapped.duplicate();
+		return header.remaining() >= 24 && header.getInt() == MAGIC &&
+			header.getInt() == FORMAT_VERSION && header.getLong() == svd.length() &&
+			header.getLong() == svd.lastModified();
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static void write(File cacheDir, File cache, byte[] compiled) throws IOException {
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Unable to create " + cacheDir);
+		}
+		// Other imports may be reading the old index, so replace it atomically
+		File temp = File.createTempFile(cache.getName(), ".tmp", cacheDir);
+		try {
+			Files.write(temp.toPath(), compiled);
+			Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Parse an SVD file into the binary index format.
+	 */
+	static byte[] compile(InputStream svd, long sourceLength, long sourceModified)
+			throws IOException {
+		List<SvdPeripheral> peripherals = new STM32SvdParser().parse(svd);
+
+		Map<String, Integer> nameIndex = new HashMap<>();
+		for (int i = 0; i < peripherals.size(); i++) {
+			nameIndex.putIfAbsent(peripherals.get(i).name, i);
+		}
+
+		StringTable stringTable = new StringTable();
+		int count = peripherals.size();
+		int[][] periph = new int[10][count];
+		List<SvdRegister> registers = new ArrayList<>();
+		List<SvdInterrupt> interrupts = new ArrayList<>();
+		int[] ownRegStart = new int[count];
+		for (int i = 0; i < count; i++) {
+			SvdPeripheral p = peripherals.get(i);
+			ownRegStart[i] = registers.size();
+			registers.addAll(p.registers);
+		}
+		for (int i = 0; i < count; i++) {
+			SvdPeripheral p = peripherals.get(i);
+			int derived = p.derivedFrom == null ? NONE : nameIndex.getOrDefault(p.derivedFrom, NONE);
+			// Derived peripherals share the register range of the peripheral they copy
+			int regSource = derived != NONE && p.registers.isEmpty() ? derived : i;
+			SvdPeripheral source = peripherals.get(regSource);
+			int size = p.size == 0 && derived != NONE ? peripherals.get(derived).size : p.size;
+
+			periph[0][i] = stringTable.add(p.name);
+			periph[1][i] = stringTable.add(p.group);
+			periph[2][i] = stringTable.add(p.prefix);
+			periph[3][i] = (int) p.base;
+			periph[4][i] = size;
+			periph[5][i] = derived;
+			periph[6][i] = ownRegStart[regSource];
+			periph[7][i] = source.registers.size();
+			periph[8][i] = interrupts.size();
+			periph[9][i] = p.interrupts.size();
+			interrupts.addAll(p.interrupts);
+		}
+
+		int[][] reg = new int[4][registers.size()];
+		for (int i = 0; i < registers.size(); i++) {
+			SvdRegister r = registers.get(i);
+			reg[0][i] = stringTable.add(r.name);
+			reg[1][i] = r.offset;
+			reg[2][i] = r.size;
+			reg[3][i] = r.access;
+		}
+		int[][] irq = new int[2][interrupts.size()];
+		for (int i = 0; i < interrupts.size(); i++) {
+			irq[0][i] = stringTable.add(interrupts.get(i).name);
+			irq[1][i] = interrupts.get(i).value;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(sourceLength);
+		out.writeLong(sourceModified);
+		out.writeInt(stringTable.size());
+		out.writeInt(count);
+		out.writeInt(registers.size());
+		out.writeInt(interrupts.size());
+		stringTable.write(out);
+		for (int[] array : periph) {
+			writeInts(out, array);
+		}
+		for (int[] array : reg) {
+			writeInts(out, array);
+		}
+		for (int[] array : irq) {
+			writeInts(out, array);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	// Also used by STM32HalIndex
+	static class StringTable {
+		private final Map<String, Integer> index = new HashMap<>();
+		private final List<byte[]> encoded = new ArrayList<>();
+
+		int add(String s) {
+			if (s == null) {
+				return NONE;
+			}
+			return index.computeIfAbsent(s, k -> {
+				encoded.add(k.getBytes(StandardCharsets.UTF_8));
+				return encoded.size() - 1;
+			});
+		}
+
+		int size() {
+			return encoded.size();
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			int offset = 0;
+			for (byte[] b : encoded) {
+				out.writeInt(offset);
+				offset += b.length;
+			}
+			out.writeInt(offset);
+			for (byte[] b : encoded) {
+				out.write(b);
+			}
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] array) throws IOException {
+		for (int value : array) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int[] readInts(ByteBuffer buffer, int count) {
+		int[] array = new int[count];
+		buffer.asIntBuffer().get(array);
+		buffer.position(buffer.position() + count * 4);
+		return array;
+	}
+
+	private String getString(int index) {
+		if (index == NONE) {
+			return null;
+		}
+		String s = strings[index];
+		if (s == null) {
+			int start = stringTableStart() + stringOffsets[index];
+			byte[] b = new byte[stringOffsets[index + 1] - stringOffsets[index]];
+			ByteBuffer view = buffer.duplicate();
+			view.position(start);
+			view.get(b);
+			s = new String(b, StandardCharsets.UTF_8).intern();
+			strings[index] = s;
+		}
+		return s;
+	}
+
+	private int stringTableStart() {
+		// header (8 + 16 + 16) followed by the offset table
+		return 40 + stringOffsets.length * 4;
+	}
+
+	/**
+	 * @return a stamp that changes whenever the SVD file this map was compiled from changes
+	 */
+	public String getSourceStamp() {
+		return sourceLength + ":" + sourceModified;
+	}
+
+	public int getPeripheralCount() {
+		return periphName.length;
+	}
+
+	public String getPeripheralName(int p) {
+		return getString(periphName[p]);
+	}
+
+	/**
+	 * @return the SVD groupName of the peripheral, or null
+	 */
+	public String getPeripheralGroup(int p) {
+		return getString(periphGroup[p]);
+	}
+
+	public long getPeripheralBase(int p) {
+		return periphBase[p] & 0xffffffffL;
+	}
+
+	public int getPeripheralSize(int p) {
+		return periphSize[p];
+	}
+
+	/**
+	 * @return the index of the peripheral this one is derived from, or -1
+	 */
+	public int getDerivedFrom(int p) {
+		return periphDerived[p];
+	}
+
+	public int getRegisterStart(int p) {
+		return periphRegStart[p];
+	}
+
+	public int getRegisterCount(int p) {
+		return periphRegCount[p];
+	}
+
+	public int getInterruptStart(int p) {
+		return periphIrqStart[p];
+	}
+
+	public int getInterruptCount(int p) {
+		return periphIrqCount[p];
+	}
+
+	public String getRegisterName(int r) {
+		return getString(regName[r]);
+	}
+
+	public int getRegisterOffset(int r) {
+		return regOffset[r];
+	}
+
+	/**
+	 * @return the register width in bits
+	 */
+	public int getRegisterSize(int r) {
+		return regSize[r];
+	}
+
+	public int getRegisterAccess(int r) {
+		return regAccess[r];
+	}
+
+	/**
+	 * Label for register {@code r} of peripheral {@code p}: the peripheral's prependToName
+	 * followed by the register name, or the peripheral name and register name joined by '_'.
+	 */
+	public String getRegisterLabel(int p, int r) {
+		String prefix = getString(periphPrefix[p]);
+		if (prefix == null) {
+			prefix = getPeripheralName(p) + "_";
+		}
+		return prefix + getRegisterName(r);
+	}
+
+	public int getTotalInterruptCount() {
+		return irqName.length;
+	}
+
+	public String getInterruptName(int i) {
+		return getString(irqName[i]);
+	}
+
+	/**
+	 * @return the IRQ number, the vector is at 0x40 + 4 * value
+	 */
+	public int getInterruptValue(int i) {
+		return irqValue[i];
+	}
+}
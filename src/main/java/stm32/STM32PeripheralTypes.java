@@ -0,0 +1,155 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.util.*;
+
+import ghidra.program.model.data.*;
+
+/**
+ * Register layouts of a {@link STM32PeripheralDatabase} as structures for a program's
+ * {@link DataTypeManager}. Peripherals derived from the same SVD peripheral share one
+ * structure, so GPIOA-GPIOI are all a single GPIO_TypeDef. The structures are only built
+ * here, {@link STM32LoadPlan#apply} adds them to the program, so building a plan leaves the
+ * program's data types alone.
+ */
+public class STM32PeripheralTypes {
+
+	public static final CategoryPath CATEGORY = new CategoryPath("/STM32");
+
+	private final STM32PeripheralDatabase db;
+	private final DataTypeManager dtm;
+
+	// Structure per register range, derived peripherals share their source's range
+	private final Map<Integer, DataType> types = new HashMap<>();
+	// Groups whose peripherals all have the same register layout, named after the group
+	private final Set<String> uniformGroups = new HashSet<>();
+
+	public STM32PeripheralTypes(STM32PeripheralDatabase db, DataTypeManager dtm) {
+		this.db = db;
+		this.dtm = dtm;
+
+		Map<String, Integer> groupLayout = new HashMap<>();
+		Set<String> mixed = new HashSet<>();
+		for (int p = 0; p < db.getPeripheralCount(); p++) {
+			String group = db.getPeripheralGroup(p);
+			if (group == null || db.getRegisterCount(p) == 0) {
+				continue;
+			}
+			Integer layout = groupLayout.putIfAbsent(group, db.getRegisterStart(p));
+			if (layout != null && layout != db.getRegisterStart(p)) {
+				mixed.add(group);
+			}
+		}
+		uniformGroups.addAll(groupLayout.keySet());
+		uniformGroups.removeAll(mixed);
+	}
+
+	/**
+	 * @return the structure for peripheral {@code p}, or null if it has no registers
+	 */
+	public DataType getType(int p) {
+		if (db.getRegisterCount(p) == 0) {
+			return null;
+		}
+		return types.computeIfAbsent(db.getRegisterStart(p), start -> build(p));
+	}
+
+	/**
+	 * @return the structure named {@code name}, such as "GPIO_TypeDef", or null if no
+	 * peripheral of this map has that structure
+	 */
+	public DataType findType(String name) {
+		for (int p = 0; p < db.getPeripheralCount(); p++) {
+			if (db.getRegisterCount(p) > 0 && getTypeName(p).equals(name)) {
+				return getType(p);
+			}
+		}
+		return null;
+	}
+
+	private String getTypeName(int p) {
+		int root = p;
+		while (db.getDerivedFrom(root) >= 0) {
+			root = db.getDerivedFrom(root);
+		}
+		String group = db.getPeripheralGroup(root);
+		return (uniformGroups.contains(group) ? group : db.getPeripheralName(root))
+				.trim().replaceAll("\\s+", "_") + "_TypeDef";
+	}
+
+	private DataType build(int p) {
+		String name = getTypeName(p);
+
+		// Lay the registers out by offset, alternate views of the same register are dropped
+		int start = db.getRegisterStart(p);
+		Integer[] regs = new Integer[db.getRegisterCount(p)];
+		int length = 0;
+		for (int i = 0; i < regs.length; i++) {
+			int r = start + i;
+			regs[i] = r;
+			length = Math.max(length, db.getRegisterOffset(r) + getRegisterBytes(r));
+		}
+		Arrays.sort(regs, Comparator.comparingInt(db::getRegisterOffset));
+
+		// The dtm only supplies the data organization, nothing is added to it
+		Structure struct = new StructureDataType(CATEGORY, name, length, dtm);
+		Set<String> fieldNames = new HashSet<>();
+		int end = 0;
+		for (int r : regs) {
+			int offset = db.getRegisterOffset(r);
+			if (offset < end) {
+				continue;
+			}
+			int bytes = getRegisterBytes(r);
+			struct.replaceAtOffset(offset, getDataType(bytes), bytes,
+				getFieldName(fieldNames, db.getRegisterName(r), offset), null);
+			end = offset + bytes;
+		}
+		return struct;
+	}
+
+	/**
+	 * Some SVDs repeat a register name within a peripheral, the USB OTG ones have several
+	 * DIEPTSIZ1 for instance, so later fields of the same name get their offset appended.
+	 */
+	private static String getFieldName(Set<String> fieldNames, String name, int offset) {
+		if (!fieldNames.add(name)) {
+			name = String.format("%s_%x", name, offset);
+			fieldNames.add(name);
+		}
+		return name;
+	}
+
+	private int getRegisterBytes(int r) {
+		return Math.max(db.getRegisterSize(r) / 8, 1);
+	}
+
+	private static DataType getDataType(int bytes) {
+		switch (bytes) {
+			case 1:
+				return ByteDataType.dataType;
+			case 2:
+				return WordDataType.dataType;
+			case 4:
+				return DWordDataType.dataType;
+			case 8:
+				return QWordDataType.dataType;
+			default:
+				return new ArrayDataType(ByteDataType.dataType, bytes, 1);
+		}
+	}
+}
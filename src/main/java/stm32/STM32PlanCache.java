@@ -0,0 +1,262 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.framework.Application;
+import ghidra.program.model.data.DataType;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * On-disk cache of load plans and literal scan results, keyed by the SHA-256 of the image
+ * and everything else the plan depends on. The same firmware imported again under another
+ * name skips the vector table, startup code and literal pool analysis and only has the plan
+ * written into the new program.
+ * <p>
+ * The cache is kept under {@code stm32-plans} in the user cache directory. Entries not used
+ * for {@link #DEFAULT_MAX_AGE_DAYS} days are dropped, and beyond {@link #DEFAULT_MAX_BYTES}
+ * the least recently used entries are dropped first.
+ */
+public class STM32PlanCache {
+
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	public static final int DEFAULT_MAX_AGE_DAYS = 30;
+
+	private static final int MAGIC = 0x5333324C; // "S32L"
+	// Bump when the file layout changes, changes to the plans themselves are covered by the
+	// loader stamp in the key
+	private static final int FORMAT_VERSION = 1;
+	private static final String SUFFIX = ".plan";
+	private static final int BUFFER_SIZE = 0x10000;
+
+	/**
+	 * A plan restored from the cache along with the literal scan results of the same load.
+	 */
+	public static class Entry {
+		public final STM32LoadPlan plan;
+		public final STM32LiteralScanner.Hits hits;
+
+		Entry(STM32LoadPlan plan, STM32LiteralScanner.Hits hits) {
+			this.plan = plan;
+			this.hits = hits;
+		}
+	}
+
+	// Hash of the loader classes, see getLoaderStamp
+	private static String loaderStamp;
+
+	private final File dir;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+
+	public STM32PlanCache(File dir, long maxBytes, int maxAgeDays) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = TimeUnit.DAYS.toMillis(maxAgeDays);
+	}
+
+	public static STM32PlanCache getDefault() {
+		return new STM32PlanCache(new File(Application.getUserCacheDirectory(), "stm32-plans"),
+			DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_DAYS);
+	}
+
+	/**
+	 * Hash the image, read from the provider in chunks so it is never held in memory twice,
+	 * together with {@code context}, which has to name everything besides the image bytes
+	 * that changes the plan: the device, the peripheral map and the load options. The
+	 * {@link #getLoaderStamp loader stamp} is part of the key, so plans written by another
+	 * build of the extension are never read.
+	 *
+	 * @return the key as a hex string
+	 */
+	public static String getKey(ByteProvider provider, String context, TaskMonitor monitor)
+			throws IOException, CancelledException {
+		MessageDigest digest = newDigest();
+		digest.update((FORMAT_VERSION + "\n" + Application.getApplicationVersion() + "\n" +
+			getLoaderStamp() + "\n" + context + "\n").getBytes(StandardCharsets.UTF_8));
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = provider.getInputStream(0)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				monitor.checkCanceled();
+				digest.update(buffer, 0, n);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Hash the classes of the extension, the jar it was installed as or the class files of a
+	 * development build. Any change to the loader changes the stamp, whether or not it changes
+	 * the plans, which only costs a rebuild of each plan.
+	 *
+	 * @return the stamp as a hex string
+	 */
+	static synchronized String getLoaderStamp() throws IOException {
+		if (loaderStamp != null) {
+			return loaderStamp;
+		}
+		Path location;
+		try {
+			location = Paths.get(
+				STM32PlanCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		}
+		catch (URISyntaxException | SecurityException | NullPointerException e) {
+			throw new IOException("Unable to locate the loader classes", e);
+		}
+		MessageDigest digest = newDigest();
+		if (Files.isDirectory(location)) {
+			List<Path> classes = new ArrayList<>();
+			try (Stream<Path> files = Files.walk(location.resolve("stm32"))) {
+				files.filter(file -> file.toString().endsWith(".class")).forEach(classes::add);
+			}
+			Collections.sort(classes);
+			for (Path file : classes) {
+				digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+				digest.update(Files.readAllBytes(file));
+			}
+		}
+		else {
+			digest.update(Files.readAllBytes(location));
+		}
+		loaderStamp = toHex(digest.digest());
+		return loaderStamp;
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @param types finds the data types named in the plan in the program being loaded
+	 * @return the cached entry, or null if there is none or it can't be read
+	 */
+	public Entry get(String key, Function<String, DataType> types) {
+		File file = new File(dir, key + SUFFIX);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Not a load plan");
+			}
+			STM32LoadPlan plan = STM32LoadPlan.read(in, types);
+			int count = in.readInt();
+			long[] from = new long[count];
+			long[] to = new long[count];
+			int[] register = new int[count];
+			for (int i = 0; i < count; i++) {
+				from[i] = in.readLong();
+				to[i] = in.readLong();
+				register[i] = in.readInt();
+			}
+			// Eviction goes by last use, not by when the entry was written
+			file.setLastModified(System.currentTimeMillis());
+			return new Entry(plan, new STM32LiteralScanner.Hits(from, to, register));
+		}
+		catch (IOException e) {
+			// Damaged, or written for a different peripheral map, build the plan again
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store a plan and its literal scan results, then evict old entries. Failures are
+	 * ignored since the cache is only an optimization.
+	 */
+	public void put(String key, STM32LoadPlan plan, STM32LiteralScanner.Hits hits) {
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				return;
+			}
+			// Parallel imports of the same image may race to write the entry
+			File temp = File.createTempFile("plan", ".tmp", dir);
+			try {
+				try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+					out.writeInt(MAGIC);
+					out.writeInt(FORMAT_VERSION);
+					plan.write(out);
+					out.writeInt(hits.size());
+					for (int i = 0; i < hits.size(); i++) {
+						out.writeLong(hits.from[i]);
+						out.writeLong(hits.to[i]);
+						out.writeInt(hits.register[i]);
+					}
+				}
+				Files.move(temp.toPath(), new File(dir, key + SUFFIX).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				temp.delete();
+			}
+			evict();
+		}
+		catch (IOException e) {
+			// Keep going without the cache
+		}
+	}
+
+	/**
+	 * Drop entries older than the maximum age, then the least recently used entries until
+	 * the cache fits in the maximum size.
+	 */
+	public void evict() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+		long now = System.currentTimeMillis();
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+			if (now - file.lastModified() > maxAgeMillis || total > maxBytes) {
+				total -= file.length();
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.*;
+import java.util.*;
+
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Intel HEX and Motorola S-record images, read straight from the provider. A first pass over
+ * the records finds the contiguous segments of the image, and each segment is decoded again
+ * as a stream while its memory block is created. Only one record is held in memory at a time,
+ * however large the file is.
+ */
+public class STM32RecordFile {
+
+	public enum Format {
+		INTEL_HEX, SREC
+	}
+
+	/**
+	 * A run of data records with consecutive addresses. Small gaps between records are part of
+	 * the segment and read as erased flash.
+	 */
+	public static class Segment {
+		public final long start;
+		private long length;
+		// Where the first record starts in the file, and the HEX address base in effect there
+		private final long fileOffset;
+		private final long base;
+
+		Segment(long start, long length, long fileOffset, long base) {
+			this.start = start;
+			this.length = length;
+			this.fileOffset = fileOffset;
+			this.base = base;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long end() {
+			return start + length;
+		}
+	}
+
+	// Gaps up to this size are filled with 0xFF rather than starting a new segment
+	public static final int MAX_FILL = 0x1000;
+	// Text read while looking for the vector table before giving up on it
+	private static final int SNIFF_TEXT_LIMIT = 0x10000;
+	// Longest valid line of either format, 255 data bytes plus the record overhead
+	private static final int MAX_LINE = 600;
+
+	private final ByteProvider provider;
+	private final Format format;
+	private final List<Segment> segments = new ArrayList<>();
+	private long entry = -1;
+
+	private STM32RecordFile(ByteProvider provider, Format format) {
+		this.provider = provider;
+		this.format = format;
+	}
+
+	/**
+	 * @return the record format of the file, or null if it doesn't start with a HEX or
+	 * S-record line
+	 */
+	public static Format getFormat(ByteProvider provider) throws IOException {
+		byte[] start = provider.readBytes(0, Math.min(provider.length(), 16));
+		int i = 0;
+		while (i < start.length && Character.isWhitespace(start[i])) {
+			i++;
+		}
+		if (i + 1 >= start.length) {
+			return null;
+		}
+		if (start[i] == ':' && hexValue(start[i + 1]) >= 0) {
+			return Format.INTEL_HEX;
+		}
+		if (start[i] == 'S' && start[i + 1] >= '0' && start[i + 1] <= '9') {
+			return Format.SREC;
+		}
+		return null;
+	}
+
+	/**
+	 * Read every record once to find the segments.
+	 *
+	 * @throws IOException if the file is not a valid record file
+	 */
+	public static STM32RecordFile open(ByteProvider provider, TaskMonitor monitor)
+			throws IOException, CancelledException {
+		Format format = getFormat(provider);
+		if (format == null) {
+			throw new IOException(provider.getName() + " is not an Intel HEX or S-record file");
+		}
+		STM32RecordFile file = new STM32RecordFile(provider, format);
+		try (RecordReader reader = new RecordReader(format, provider, 0, 0)) {
+			Segment current = null;
+			while (reader.next()) {
+				monitor.checkCanceled();
+				if (reader.type == RecordReader.START) {
+					file.entry = reader.address;
+				}
+				if (reader.type != RecordReader.DATA || reader.length == 0) {
+					continue;
+				}
+				if (current != null && reader.address >= current.end() &&
+					reader.address - current.end() <= MAX_FILL) {
+					current.length = reader.address + reader.length - current.start;
+				}
+				else {
+					current = new Segment(reader.address, reader.length, reader.recordOffset,
+						reader.recordBase);
+					file.segments.add(current);
+				}
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Collect the bytes at {@code [start, start + length)} from the records near the start
+	 * of the file, for probing the vector table without reading the whole file.
+	 *
+	 * @return the bytes found from {@code start} up to the first one that is missing, which
+	 * is empty if the file is not a valid record file
+	 */
+	public static byte[] readStart(ByteProvider provider, long start, int length)
+			throws IOException {
+		Format format = getFormat(provider);
+		if (format == null) {
+			return new byte[0];
+		}
+		byte[] bytes = new byte[length];
+		BitSet found = new BitSet(length);
+		try (RecordReader reader = new RecordReader(format, provider, 0, 0)) {
+			while (reader.offset < SNIFF_TEXT_LIMIT && found.nextClearBit(0) < length &&
+				reader.next()) {
+				if (reader.type != RecordReader.DATA) {
+					continue;
+				}
+				for (int i = 0; i < reader.length; i++) {
+					long offset = reader.address + i - start;
+					if (offset >= 0 && offset < length) {
+						bytes[(int) offset] = reader.data[i];
+						found.set((int) offset);
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			// Whatever was read before the bad record is still good for probing
+		}
+		return Arrays.copyOf(bytes, found.nextClearBit(0));
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public List<Segment> getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * @return the start address from the file, or -1 if it has none
+	 */
+	public long getEntry() {
+		return entry;
+	}
+
+	/**
+	 * Decode the bytes of one segment from the file again.
+	 */
+	public InputStream getInputStream(Segment segment) throws IOException {
+		return new SegmentStream(segment,
+			new RecordReader(format, provider, segment.fileOffset, segment.base));
+	}
+
+	private static class SegmentStream extends InputStream {
+		private final RecordReader reader;
+		private long next;
+		private long remaining;
+		private int fill;
+		private int pos;
+
+		SegmentStream(Segment segment, RecordReader reader) {
+			this.reader = reader;
+			this.next = segment.start;
+			this.remaining = segment.length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			len = (int) Math.min(len, remaining);
+			int n = 0;
+			while (n < len) {
+				int count;
+				if (fill > 0) {
+					count = Math.min(fill, len - n);
+					Arrays.fill(b, off + n, off + n + count, (byte) 0xFF);
+					fill -= count;
+				}
+				else if (pos < reader.length) {
+					count = Math.min(reader.length - pos, len - n);
+					System.arraycopy(reader.data, pos, b, off + n, count);
+					pos += count;
+				}
+				else {
+					nextData();
+					continue;
+				}
+				next += count;
+				n += count;
+			}
+			remaining -= n;
+			return n;
+		}
+
+		/**
+		 * Move to the next data record, which has to continue the segment.
+		 */
+		private void nextData() throws IOException {
+			do {
+				if (!reader.next()) {
+					throw new EOFException("File changed since it was first read");
+				}
+			}
+			while (reader.type != RecordReader.DATA || reader.length == 0);
+			if (reader.address < next || reader.address - next > MAX_FILL) {
+				throw new IOException("File changed since it was first read");
+			}
+			fill = (int) (reader.address - next);
+			pos = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads one record at a time and checks its checksum. Data addresses are absolute, the
+	 * extended address records of Intel HEX are applied as they are read.
+	 */
+	private static class RecordReader implements Closeable {
+		static final int DATA = 0;
+		static final int START = 1;
+		static final int OTHER = 2;
+
+		private final Format format;
+		private final InputStream in;
+		private final byte[] line = new byte[MAX_LINE];
+		private final byte[] record = new byte[MAX_LINE / 2];
+		private boolean ended;
+
+		// Bytes of the file read so far
+		long offset;
+		// HEX address base for the following data records
+		long base;
+
+		// The current record
+		long recordOffset;
+		long recordBase;
+		int type;
+		long address;
+		final byte[] data = new byte[256];
+		int length;
+
+		RecordReader(Format format, ByteProvider provider, long offset, long base)
+				throws IOException {
+			this.format = format;
+			this.in = new BufferedInputStream(provider.getInputStream(offset));
+			this.offset = offset;
+			this.base = base;
+		}
+
+		/**
+		 * @return false at the end of the file or after an end record
+		 */
+		boolean next() throws IOException {
+			int n;
+			do {
+				if (ended) {
+					return false;
+				}
+				recordOffset = offset;
+				n = readLine();
+				if (n < 0) {
+					return false;
+				}
+			}
+			while (n == 0);
+			recordBase = base;
+			length = 0;
+			if (format == Format.INTEL_HEX) {
+				parseHex(n);
+			}
+			else {
+				parseSrec(n);
+			}
+			return !ended || type != OTHER;
+		}
+
+		private void parseHex(int n) throws IOException {
+			if (line[0] != ':') {
+				throw error("Expected ':'");
+			}
+			int count = decode(1, n);
+			if (count < 5 || count != (record[0] & 0xFF) + 5) {
+				throw error("Bad record length");
+			}
+			int sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += record[i];
+			}
+			if ((sum & 0xFF) != 0) {
+				throw error("Bad checksum");
+			}
+			int offset16 = (record[1] & 0xFF) << 8 | (record[2] & 0xFF);
+			int dataLength = record[0] & 0xFF;
+			if ((record[3] == 2 || record[3] == 4) && dataLength != 2 ||
+				(record[3] == 3 || record[3] == 5) && dataLength != 4) {
+				throw error("Bad address record");
+			}
+			int value = dataLength >= 2 ? (record[4] & 0xFF) << 8 | (record[5] & 0xFF) : 0;
+			switch (record[3]) {
+				case 0:
+					type = DATA;
+					address = base + offset16;
+					length = dataLength;
+					System.arraycopy(record, 4, data, 0, length);
+					break;
+				case 1:
+					type = OTHER;
+					ended = true;
+					break;
+				case 2:
+					type = OTHER;
+					base = (long) value << 4;
+					break;
+				case 3:
+					type = START;
+					address = ((long) value << 4) +
+						((record[6] & 0xFF) << 8 | (record[7] & 0xFF));
+					break;
+				case 4:
+					type = OTHER;
+					base = (long) value << 16;
+					break;
+				case 5:
+					type = START;
+					address = (long) value << 16 | (record[6] & 0xFF) << 8 | (record[7] & 0xFF);
+					break;
+				default:
+					throw error("Unknown record type " + record[3]);
+			}
+		}
+
+		private void parseSrec(int n) throws IOException {
+			if (n < 4 || line[0] != 'S') {
+				throw error("Expected 'S'");
+			}
+			int kind = line[1] - '0';
+			int addressBytes;
+			switch (kind) {
+				case 0:
+				case 1:
+				case 5:
+				case 9:
+					addressBytes = 2;
+					break;
+				case 2:
+				case 6:
+				case 8:
+					addressBytes = 3;
+					break;
+				case 3:
+				case 7:
+					addressBytes = 4;
+					break;
+				default:
+					throw error("Unknown record type S" + kind);
+			}
+			int count = decode(2, n);
+			if (count < addressBytes + 2 || count != (record[0] & 0xFF) + 1) {
+				throw error("Bad record length");
+			}
+			int sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += record[i];
+			}
+			if ((sum & 0xFF) != 0xFF) {
+				throw error("Bad checksum");
+			}
+			long addr = 0;
+			for (int i = 1; i <= addressBytes; i++) {
+				addr = addr << 8 | (record[i] & 0xFF);
+			}
+			if (kind >= 1 && kind <= 3) {
+				type = DATA;
+				address = addr;
+				length = count - addressBytes - 2;
+				System.arraycopy(record, 1 + addressBytes, data, 0, length);
+			}
+			else if (kind >= 7) {
+				type = START;
+				address = addr;
+				ended = true;
+			}
+			else {
+				type = OTHER;
+			}
+		}
+
+		/**
+		 * Decode the hex digits of the line from {@code start} into {@link #record}.
+		 *
+		 * @return the number of bytes
+		 */
+		private int decode(int start, int end) throws IOException {
+			if ((end - start) % 2 != 0) {
+				throw error("Odd number of digits");
+			}
+			int count = 0;
+			for (int i = start; i < end; i += 2) {
+				int hi = hexValue(line[i]);
+				int lo = hexValue(line[i + 1]);
+				if (hi < 0 || lo < 0) {
+					throw error("Invalid hex digit");
+				}
+				record[count++] = (byte) (hi << 4 | lo);
+			}
+			return count;
+		}
+
+		/**
+		 * Read one line without its line ending and trailing whitespace.
+		 *
+		 * @return the length of the line, or -1 at the end of the file
+		 */
+		private int readLine() throws IOException {
+			int n = 0;
+			int c;
+			while ((c = in.read()) >= 0) {
+				offset++;
+				if (c == '\n') {
+					break;
+				}
+				if (n == MAX_LINE) {
+					throw error("Line too long");
+				}
+				line[n++] = (byte) c;
+			}
+			if (c < 0 && n == 0) {
+				return -1;
+			}
+			while (n > 0 && Character.isWhitespace(line[n - 1])) {
+				n--;
+			}
+			return n;
+		}
+
+		private IOException error(String message) {
+			return new IOException(message + " in record at file offset " + recordOffset);
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static int hexValue(int c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+}
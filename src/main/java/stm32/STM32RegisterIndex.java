@@ -0,0 +1,156 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.util.Arrays;
+
+/**
+ * Address lookup over the peripherals and registers of a {@link STM32PeripheralDatabase}.
+ * Peripheral ranges and register addresses are kept in sorted primitive arrays and found by
+ * binary search, so lookups are cheap enough to do for every word of a flash image and safe
+ * to do from several threads at once.
+ */
+public class STM32RegisterIndex {
+
+	public static final int NONE = -1;
+
+	private final STM32PeripheralDatabase db;
+
+	// Peripheral ranges sorted by start address
+	private final long[] periphStart;
+	private final long[] periphEnd;
+	private final int[] periph;
+
+	// Registers sorted by absolute address
+	private final long[] regAddr;
+	private final int[] regBytes;
+	private final int[] regPeriph;
+	private final int[] reg;
+
+	public STM32RegisterIndex(STM32PeripheralDatabase db) {
+		this.db = db;
+
+		int count = db.getPeripheralCount();
+		long[] keys = new long[count];
+		for (int p = 0; p < count; p++) {
+			keys[p] = db.getPeripheralBase(p) << 32 | p;
+		}
+		Arrays.sort(keys);
+		periphStart = new long[count];
+		periphEnd = new long[count];
+		periph = new int[count];
+		int registers = 0;
+		for (int i = 0; i < count; i++) {
+			int p = (int) keys[i];
+			periph[i] = p;
+			periphStart[i] = db.getPeripheralBase(p);
+			periphEnd[i] = periphStart[i] + Math.max(db.getPeripheralSize(p), 1);
+			registers += db.getRegisterCount(p);
+		}
+
+		long[] regKeys = new long[registers];
+		int[] regOwner = new int[registers];
+		int n = 0;
+		for (int p = 0; p < count; p++) {
+			int start = db.getRegisterStart(p);
+			for (int r = start; r < start + db.getRegisterCount(p); r++) {
+				regOwner[n] = p;
+				regKeys[n] = (db.getPeripheralBase(p) + db.getRegisterOffset(r)) << 24 | n;
+				n++;
+			}
+		}
+		// Address is at most 32 bits and there are fewer than 2^24 registers, so one long
+		// sort orders by address and keeps the original position
+		Arrays.sort(regKeys);
+		regAddr = new long[registers];
+		regBytes = new int[registers];
+		regPeriph = new int[registers];
+		reg = new int[registers];
+		int[] flatReg = flattenRegisters(db, registers);
+		for (int i = 0; i < registers; i++) {
+			int original = (int) (regKeys[i] & 0xffffff);
+			regAddr[i] = regKeys[i] >>> 24;
+			regPeriph[i] = regOwner[original];
+			reg[i] = flatReg[original];
+			regBytes[i] = Math.max(db.getRegisterSize(reg[i]) / 8, 1);
+		}
+	}
+
+	private static int[] flattenRegisters(STM32PeripheralDatabase db, int registers) {
+		int[] flat = new int[registers];
+		int n = 0;
+		for (int p = 0; p < db.getPeripheralCount(); p++) {
+			int start = db.getRegisterStart(p);
+			for (int r = start; r < start + db.getRegisterCount(p); r++) {
+				flat[n++] = r;
+			}
+		}
+		return flat;
+	}
+
+	public STM32PeripheralDatabase getDatabase() {
+		return db;
+	}
+
+	/**
+	 * @return the database index of the peripheral containing {@code addr}, or {@link #NONE}
+	 */
+	public int findPeripheral(long addr) {
+		int i = floor(periphStart, addr);
+		return i >= 0 && addr < periphEnd[i] ? periph[i] : NONE;
+	}
+
+	/**
+	 * @return the entry of the register containing {@code addr}, or {@link #NONE}. Entries
+	 * are positions in this index, see {@link #getRegisterAddress(int)}.
+	 */
+	public int findRegister(long addr) {
+		int i = floor(regAddr, addr);
+		return i >= 0 && addr < regAddr[i] + regBytes[i] ? i : NONE;
+	}
+
+	public int getRegisterEntryCount() {
+		return regAddr.length;
+	}
+
+	public long getRegisterAddress(int entry) {
+		return regAddr[entry];
+	}
+
+	public int getRegisterPeripheral(int entry) {
+		return regPeriph[entry];
+	}
+
+	public int getRegister(int entry) {
+		return reg[entry];
+	}
+
+	public String getRegisterLabel(int entry) {
+		return db.getRegisterLabel(regPeriph[entry], reg[entry]);
+	}
+
+	private static int floor(long[] sorted, long key) {
+		int i = Arrays.binarySearch(sorted, key);
+		if (i >= 0) {
+			// Several registers can share an address, use the first
+			while (i > 0 && sorted[i - 1] == key) {
+				i--;
+			}
+			return i;
+		}
+		return -i - 2;
+	}
+}
@@ -0,0 +1,71 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+
+import ghidra.app.services.*;
+import ghidra.app.util.importer.MessageLog;
+import ghidra.program.model.address.AddressSetView;
+import ghidra.program.model.listing.Program;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Labels peripheral registers as code that references them is found. Runs after reference
+ * analysis so the constant references are already in place, and is enabled by default for
+ * programs the loader imported with lazy register labels.
+ */
+public class STM32RegisterLabelAnalyzer extends AbstractAnalyzer {
+
+	private static final String NAME = "STM32 Register Labels";
+	private static final String DESCRIPTION =
+		"Labels STM32 peripheral registers that are referenced by code or data.";
+
+	public STM32RegisterLabelAnalyzer() {
+		super(NAME, DESCRIPTION, AnalyzerType.INSTRUCTION_ANALYZER);
+		setPriority(AnalysisPriority.REFERENCE_ANALYSIS.after());
+		setSupportsOneTimeAnalysis();
+	}
+
+	@Override
+	public boolean canAnalyze(Program program) {
+		return STM32RegisterLabeler.getDevice(program) != null;
+	}
+
+	@Override
+	public boolean getDefaultEnablement(Program program) {
+		return STM32RegisterLabeler.isLazy(program);
+	}
+
+	@Override
+	public boolean added(Program program, AddressSetView set, TaskMonitor monitor,
+			MessageLog log) throws CancelledException {
+		STM32RegisterLabeler labeler;
+		try {
+			labeler = STM32RegisterLabeler.forProgram(program);
+		}
+		catch (IOException e) {
+			log.appendMsg(NAME, "No peripheral map: " + e.getMessage());
+			return false;
+		}
+		if (labeler == null) {
+			return false;
+		}
+		monitor.setMessage("Labeling referenced registers...");
+		return labeler.labelReferenced(set, monitor, log) > 0;
+	}
+}
@@ -0,0 +1,135 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+
+import ghidra.app.util.importer.MessageLog;
+import ghidra.framework.options.Options;
+import ghidra.program.model.address.*;
+import ghidra.program.model.listing.Program;
+import ghidra.program.model.symbol.Reference;
+import ghidra.program.model.symbol.SymbolTable;
+import ghidra.util.exception.CancelledException;
+import ghidra.util.task.TaskMonitor;
+
+/**
+ * Creates register labels only where a register is actually referenced. The register map
+ * itself stays in the compiled peripheral index and the program just records which device
+ * it was loaded as, so a full SVD doesn't turn into thousands of unused symbols.
+ */
+public class STM32RegisterLabeler {
+
+	// Stored in the program information options by the loader
+	public static final String DEVICE_PROPERTY = "STM32 Device";
+	public static final String LAZY_LABELS_PROPERTY = "STM32 Referenced Register Labels Only";
+
+	private final Program program;
+	private final STM32RegisterIndex index;
+	private final AddressSet peripheralSet;
+
+	public STM32RegisterLabeler(Program program, STM32RegisterIndex index) {
+		this.program = program;
+		this.index = index;
+		this.peripheralSet = getPeripheralSet(program, index.getDatabase());
+	}
+
+	/**
+	 * @return the address ranges of all peripherals in the map
+	 */
+	static AddressSet getPeripheralSet(Program program, STM32PeripheralDatabase db) {
+		AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+		AddressSet set = new AddressSet();
+		for (int p = 0; p < db.getPeripheralCount(); p++) {
+			long base = db.getPeripheralBase(p);
+			long size = Math.max(db.getPeripheralSize(p), 1);
+			set.add(space.getAddress(base), space.getAddress(base + size - 1));
+		}
+		return set;
+	}
+
+	/**
+	 * Remember the device and labeling mode so the analyzer can find the register map again.
+	 */
+	public static void recordDevice(Program program, STM32Device device, boolean lazyLabels) {
+		Options info = program.getOptions(Program.PROGRAM_INFO);
+		info.setString(DEVICE_PROPERTY, device.getPartNumber());
+		info.setBoolean(LAZY_LABELS_PROPERTY, lazyLabels);
+	}
+
+	/**
+	 * @return the device the program was loaded as, or null if it wasn't loaded by this loader
+	 */
+	public static STM32Device getDevice(Program program) {
+		String name = program.getOptions(Program.PROGRAM_INFO).getString(DEVICE_PROPERTY, null);
+		return name == null ? null : STM32DeviceCatalog.find(name);
+	}
+
+	public static boolean isLazy(Program program) {
+		return program.getOptions(Program.PROGRAM_INFO).getBoolean(LAZY_LABELS_PROPERTY, false);
+	}
+
+	/**
+	 * @return a labeler for the program's device, or null if it has no peripheral map
+	 */
+	public static STM32RegisterLabeler forProgram(Program program) throws IOException {
+		STM32Device device = getDevice(program);
+		if (device == null) {
+			return null;
+		}
+		return new STM32RegisterLabeler(program,
+			new STM32RegisterIndex(device.getFamily().getPeripherals()));
+	}
+
+	/**
+	 * Label every register that is the target of a reference from {@code sources}.
+	 *
+	 * @return the number of labels created
+	 */
+	public int labelReferenced(AddressSetView sources, TaskMonitor monitor, MessageLog log)
+			throws CancelledException {
+		SymbolTable symbolTable = program.getSymbolTable();
+		STM32LoadPlan plan = new STM32LoadPlan();
+		for (Address from : program.getReferenceManager().getReferenceSourceIterator(sources,
+			true)) {
+			monitor.checkCanceled();
+			for (Reference ref : program.getReferenceManager().getReferencesFrom(from)) {
+				Address to = ref.getToAddress();
+				if (!peripheralSet.contains(to)) {
+					continue;
+				}
+				int entry = index.findRegister(to.getOffset());
+				if (entry == STM32RegisterIndex.NONE) {
+					continue;
+				}
+				Address regAddr = to.getNewAddress(index.getRegisterAddress(entry));
+				String name = index.getRegisterLabel(entry);
+				if (symbolTable.getGlobalSymbol(name, regAddr) == null) {
+					plan.addLabel(regAddr.getOffset(), name, true);
+				}
+			}
+		}
+		plan.apply(program, monitor, log);
+		return plan.getLabels().size();
+	}
+
+	/**
+	 * @return the number of registers in the map, which is what eager labeling would create
+	 */
+	public int getRegisterCount() {
+		return index.getRegisterEntryCount();
+	}
+}
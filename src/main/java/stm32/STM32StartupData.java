@@ -0,0 +1,218 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.util.*;
+
+import ghidra.program.model.address.AddressSpace;
+import ghidra.program.model.listing.Program;
+import ghidra.program.model.mem.*;
+
+/**
+ * The .data and .bss ranges set up by a GCC style startup routine. Reset_Handler (or a
+ * routine it calls) loads _sidata, _sdata, _edata, _sbss and _ebss from its literal pool
+ * before the copy and zero loops, so decoding the PC-relative loads in the first few
+ * instructions is enough to find them without emulating the startup code. Only a fixed
+ * number of bytes is ever decoded.
+ */
+public class STM32StartupData {
+
+	// Bytes of Reset_Handler, and of each routine it calls, that are decoded
+	private static final int WINDOW = 0x100;
+	// Routines called from Reset_Handler that are searched when it has no usable literals
+	private static final int MAX_CALLS = 4;
+
+	public final long sidata;
+	public final long sdata;
+	public final long edata;
+	public final long sbss;
+	public final long ebss;
+
+	private STM32StartupData(long sidata, long sdata, long edata, long sbss, long ebss) {
+		this.sidata = sidata;
+		this.sdata = sdata;
+		this.edata = edata;
+		this.sbss = sbss;
+		this.ebss = ebss;
+	}
+
+	/**
+	 * Look for the startup ranges in the code at {@code resetHandler}.
+	 *
+	 * @param sramStart start of the SRAM the ranges must fall in
+	 * @param sramEnd end of that SRAM, exclusive
+	 * @param sp the initial stack pointer, which is loaded from the same literal pool
+	 * @return the ranges, or null if the startup code doesn't match
+	 */
+	public static STM32StartupData find(Program program, long resetHandler, long sramStart,
+			long sramEnd, long sp) {
+		Decoder decoder = new Decoder(program);
+		List<Long> calls = new ArrayList<>();
+		STM32StartupData data =
+			match(program, decoder.decode(resetHandler, calls), sramStart, sramEnd, sp);
+		for (int i = 0; data == null && i < calls.size() && i < MAX_CALLS; i++) {
+			data = match(program, decoder.decode(calls.get(i), new ArrayList<>()), sramStart,
+				sramEnd, sp);
+		}
+		return data;
+	}
+
+	/**
+	 * Both the CubeMX and the older Atollic templates load the RAM symbols in the order
+	 * _sdata, _edata, _sbss, _ebss. _edata and _sbss are often the same address, and _sidata
+	 * is the one word-aligned flash literal.
+	 */
+	private static STM32StartupData match(Program program, List<Long> literals, long sramStart,
+			long sramEnd, long sp) {
+		List<Long> ram = new ArrayList<>();
+		List<Long> flash = new ArrayList<>();
+		for (long value : literals) {
+			if (value >= sramStart && value <= sramEnd && value != sp) {
+				if (!ram.contains(value)) {
+					ram.add(value);
+				}
+			}
+			else if ((value & 3) == 0 && isInitialized(program, value)) {
+				flash.add(value);
+			}
+		}
+
+		long sdata, edata, sbss, ebss;
+		if (ram.size() == 3) {
+			sdata = ram.get(0);
+			edata = sbss = ram.get(1);
+			ebss = ram.get(2);
+		}
+		else if (ram.size() >= 4) {
+			sdata = ram.get(0);
+			edata = ram.get(1);
+			sbss = ram.get(2);
+			ebss = ram.get(3);
+		}
+		else {
+			return null;
+		}
+		if (sdata > edata || edata > sbss || sbss > ebss || sdata == ebss) {
+			return null;
+		}
+		if (sdata == edata) {
+			return new STM32StartupData(-1, sdata, edata, sbss, ebss);
+		}
+		for (long sidata : flash) {
+			if (isInitialized(program, sidata + (edata - sdata) - 1) &&
+				!(sidata < sramEnd && sidata + (edata - sdata) > sramStart)) {
+				return new STM32StartupData(sidata, sdata, edata, sbss, ebss);
+			}
+		}
+		return null;
+	}
+
+	private static boolean isInitialized(Program program, long addr) {
+		AddressSpace space = program.getAddressFactory().getDefaultAddressSpace();
+		if (addr < 0 || addr > space.getMaxAddress().getOffset()) {
+			return false;
+		}
+		MemoryBlock block = program.getMemory().getBlock(space.getAddress(addr));
+		return block != null && block.isInitialized();
+	}
+
+	/**
+	 * Linear Thumb decoder that only understands PC-relative LDR and BL. Decoding stops at
+	 * the end of the window or at the first literal it has loaded, since the routine can't
+	 * run on into its own literal pool.
+	 */
+	private static class Decoder {
+		private final Memory mem;
+		private final AddressSpace space;
+
+		Decoder(Program program) {
+			this.mem = program.getMemory();
+			this.space = program.getAddressFactory().getDefaultAddressSpace();
+		}
+
+		List<Long> decode(long start, List<Long> calls) {
+			List<Long> literals = new ArrayList<>();
+			byte[] code = new byte[WINDOW];
+			int end;
+			try {
+				end = mem.getBytes(space.getAddress(start), code) & ~1;
+			}
+			catch (MemoryAccessException e) {
+				return literals;
+			}
+
+			int i = 0;
+			while (i + 2 <= end) {
+				int hw = getHalfword(code, i);
+				long pc = start + i + 4;
+				if ((hw & 0xF800) == 0x4800) {
+					// LDR Rt, [PC, #imm8 * 4]
+					long literal = (pc & ~3L) + (hw & 0xFF) * 4;
+					end = (int) Math.min(end, Math.max(literal - start, i + 2));
+					addLiteral(literals, literal);
+					i += 2;
+					continue;
+				}
+				if ((hw & 0xE000) != 0xE000 || (hw & 0x1800) == 0) {
+					i += 2;
+					continue;
+				}
+
+				// 32-bit instruction
+				if (i + 4 > end) {
+					break;
+				}
+				int hw2 = getHalfword(code, i + 2);
+				if ((hw & 0xFF7F) == 0xF85F) {
+					// LDR.W Rt, [PC, #+/-imm12]
+					long offset = hw2 & 0xFFF;
+					long literal = (pc & ~3L) + ((hw & 0x80) != 0 ? offset : -offset);
+					if (literal > start + i) {
+						end = (int) Math.min(end, Math.max(literal - start, i + 4));
+					}
+					addLiteral(literals, literal);
+				}
+				else if ((hw & 0xF800) == 0xF000 && (hw2 & 0xD000) == 0xD000) {
+					// BL <label>
+					int s = (hw >> 10) & 1;
+					int i1 = ~((hw2 >> 13) ^ s) & 1;
+					int i2 = ~((hw2 >> 11) ^ s) & 1;
+					int offset = s << 24 | i1 << 23 | i2 << 22 | (hw & 0x3FF) << 12 |
+						(hw2 & 0x7FF) << 1;
+					calls.add(pc + (offset << 7 >> 7));
+				}
+				i += 4;
+			}
+			return literals;
+		}
+
+		private void addLiteral(List<Long> literals, long addr) {
+			byte[] word = new byte[4];
+			try {
+				if (mem.getBytes(space.getAddress(addr), word) == 4) {
+					literals.add(STM32VectorTable.getWord(word, 0));
+				}
+			}
+			catch (MemoryAccessException e) {
+				// not in the image, ignore it
+			}
+		}
+
+		private static int getHalfword(byte[] code, int i) {
+			return (code[i] & 0xFF) | (code[i + 1] & 0xFF) << 8;
+		}
+	}
+}
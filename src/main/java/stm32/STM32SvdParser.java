@@ -0,0 +1,250 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.*;
+
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the parts of a CMSIS-SVD file the loader needs: peripherals with their address
+ * blocks and interrupts, and the registers of each peripheral. Clusters are flattened and
+ * dim arrays are expanded. Only used when compiling an {@link STM32PeripheralDatabase}.
+ */
+class STM32SvdParser {
+
+	static class SvdRegister {
+		String name;
+		int offset;
+		int size;
+		int access;
+	}
+
+	static class SvdInterrupt {
+		String name;
+		int value;
+	}
+
+	static class SvdPeripheral {
+		String name;
+		String group;
+		String prefix;
+		String derivedFrom;
+		long base;
+		int size;
+		List<SvdRegister> registers = new ArrayList<>();
+		List<SvdInterrupt> interrupts = new ArrayList<>();
+	}
+
+	private int defaultSize = 32;
+	private int defaultAccess = STM32PeripheralDatabase.ACCESS_READ_WRITE;
+
+	/**
+	 * Parse the SVD. Peripherals that are derived from another peripheral and don't declare
+	 * their own registers are returned without registers; their {@code derivedFrom} names the
+	 * peripheral that holds them.
+	 */
+	List<SvdPeripheral> parse(InputStream in) throws IOException {
+		Document doc;
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			doc = factory.newDocumentBuilder().parse(in);
+		}
+		catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Invalid SVD file: " + e.getMessage(), e);
+		}
+
+		Element device = doc.getDocumentElement();
+		defaultSize = (int) parseNumber(childText(device, "size"), 32);
+		defaultAccess = parseAccess(childText(device, "access"), defaultAccess);
+
+		List<SvdPeripheral> result = new ArrayList<>();
+		Element peripherals = child(device, "peripherals");
+		if (peripherals == null) {
+			return result;
+		}
+		for (Element element : children(peripherals, "peripheral")) {
+			result.add(parsePeripheral(element));
+		}
+		return result;
+	}
+
+	private SvdPeripheral parsePeripheral(Element element) {
+		SvdPeripheral peripheral = new SvdPeripheral();
+		peripheral.name = childText(element, "name");
+		peripheral.group = childText(element, "groupName");
+		peripheral.prefix = childText(element, "prependToName");
+		peripheral.derivedFrom = element.hasAttribute("derivedFrom")
+				? element.getAttribute("derivedFrom") : null;
+		peripheral.base = parseNumber(childText(element, "baseAddress"), 0);
+
+		// The peripheral spans all of its address blocks
+		for (Element block : children(element, "addressBlock")) {
+			long end = parseNumber(childText(block, "offset"), 0) +
+				parseNumber(childText(block, "size"), 0);
+			peripheral.size = (int) Math.max(peripheral.size, end);
+		}
+		for (Element interrupt : children(element, "interrupt")) {
+			SvdInterrupt irq = new SvdInterrupt();
+			irq.name = childText(interrupt, "name");
+			irq.value = (int) parseNumber(childText(interrupt, "value"), 0);
+			peripheral.interrupts.add(irq);
+		}
+
+		int size = (int) parseNumber(childText(element, "size"), defaultSize);
+		int access = parseAccess(childText(element, "access"), defaultAccess);
+		Element registers = child(element, "registers");
+		if (registers != null) {
+			parseRegisters(registers, "", 0, size, access, peripheral.registers);
+		}
+		return peripheral;
+	}
+
+	private void parseRegisters(Element parent, String namePrefix, int baseOffset,
+			int defaultRegSize, int defaultRegAccess, List<SvdRegister> out) {
+		for (Element element : children(parent, null)) {
+			boolean cluster = element.getTagName().equals("cluster");
+			if (!cluster && !element.getTagName().equals("register")) {
+				continue;
+			}
+			String name = childText(element, "name");
+			int offset = (int) parseNumber(childText(element, "addressOffset"), 0);
+			int size = (int) parseNumber(childText(element, "size"), defaultRegSize);
+			int access = parseAccess(childText(element, "access"), defaultRegAccess);
+
+			List<String> indices = dimIndices(element);
+			int increment = (int) parseNumber(childText(element, "dimIncrement"), 0);
+			for (int i = 0; i < indices.size(); i++) {
+				String instance = expandName(name, indices.get(i));
+				int instanceOffset = baseOffset + offset + i * increment;
+				if (cluster) {
+					parseRegisters(element, namePrefix + instance + "_", instanceOffset, size,
+						access, out);
+					continue;
+				}
+				SvdRegister register = new SvdRegister();
+				register.name = namePrefix + instance;
+				register.offset = instanceOffset;
+				register.size = size;
+				register.access = access;
+				out.add(register);
+			}
+		}
+	}
+
+	private static List<String> dimIndices(Element element) {
+		int dim = (int) parseNumber(childText(element, "dim"), 0);
+		if (dim <= 0) {
+			return List.of("");
+		}
+		String dimIndex = childText(element, "dimIndex");
+		List<String> indices = new ArrayList<>();
+		if (dimIndex != null && dimIndex.contains(",")) {
+			for (String index : dimIndex.split(",")) {
+				indices.add(index.trim());
+			}
+		}
+		else if (dimIndex != null && dimIndex.matches("\\d+-\\d+")) {
+			int first = Integer.parseInt(dimIndex.substring(0, dimIndex.indexOf('-')));
+			for (int i = 0; i < dim; i++) {
+				indices.add(Integer.toString(first + i));
+			}
+		}
+		else {
+			for (int i = 0; i < dim; i++) {
+				indices.add(Integer.toString(i));
+			}
+		}
+		return indices;
+	}
+
+	private static String expandName(String name, String index) {
+		if (index.isEmpty()) {
+			return name;
+		}
+		return name.replace("[%s]", index).replace("%s", index);
+	}
+
+	static int parseAccess(String access, int defaultAccess) {
+		if (access == null) {
+			return defaultAccess;
+		}
+		switch (access) {
+			case "read-only":
+				return STM32PeripheralDatabase.ACCESS_READ;
+			case "write-only":
+			case "writeOnce":
+				return STM32PeripheralDatabase.ACCESS_WRITE;
+			default:
+				return STM32PeripheralDatabase.ACCESS_READ_WRITE;
+		}
+	}
+
+	/**
+	 * SVD numbers are decimal, 0x hex or #binary.
+	 */
+	static long parseNumber(String text, long defaultValue) {
+		if (text == null || text.isEmpty()) {
+			return defaultValue;
+		}
+		text = text.trim().toLowerCase();
+		try {
+			if (text.startsWith("0x")) {
+				return Long.parseLong(text.substring(2), 16);
+			}
+			if (text.startsWith("#")) {
+				return Long.parseLong(text.substring(1).replace('x', '0'), 2);
+			}
+			return Long.parseLong(text);
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static Element child(Element parent, String tag) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element && ((Element) node).getTagName().equals(tag)) {
+				return (Element) node;
+			}
+		}
+		return null;
+	}
+
+	private static List<Element> children(Element parent, String tag) {
+		List<Element> result = new ArrayList<>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element &&
+				(tag == null || ((Element) node).getTagName().equals(tag))) {
+				result.add((Element) node);
+			}
+		}
+		return result;
+	}
+
+	private static String childText(Element parent, String tag) {
+		Element element = child(parent, tag);
+		return element == null ? null : element.getTextContent().trim();
+	}
+}
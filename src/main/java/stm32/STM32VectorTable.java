@@ -0,0 +1,130 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import java.io.IOException;
+
+import ghidra.app.util.bin.ByteProvider;
+
+/**
+ * Cheap validation of a Cortex-M vector table at the start of a flash image. Only the first
+ * {@link #SNIFF_LENGTH} bytes are ever read, so every loader opinion is a single small read.
+ */
+public class STM32VectorTable {
+
+	// Enough for the largest table in the catalog, the H7 with 150 device interrupts
+	public static final int SNIFF_LENGTH = (16 + 150) * 4;
+
+	// Anything below this is not offered at all, anything at or above PREFERRED is preferred
+	public static final int MIN_SCORE = 50;
+	public static final int PREFERRED_SCORE = 90;
+
+	// Tables with fewer device interrupts than this lose part of the score
+	private static final int MIN_INTERRUPTS = 16;
+
+	private static final long FLASH_START = 0x08000000L;
+	private static final long FLASH_END = 0x08200000L;
+
+	// Vector slots 7-10 and 13 are reserved on ARMv7-M and must be zero
+	private static final int[] RESERVED_SLOTS = { 7, 8, 9, 10, 13 };
+
+	private STM32VectorTable() {
+		// utility class
+	}
+
+	/**
+	 * Read the start of the image and score it as a vector table.
+	 *
+	 * @return a confidence from 0 to 100
+	 */
+	public static int score(ByteProvider provider) throws IOException {
+		long length = Math.min(provider.length(), SNIFF_LENGTH);
+		if (length < 8) {
+			return 0;
+		}
+		return score(provider.readBytes(0, length & ~3L));
+	}
+
+	/**
+	 * Score the given bytes as a vector table. The initial SP and the reset vector are hard
+	 * requirements. Most of the rest of the score is the fraction of the remaining system
+	 * exception slots that are either empty or Thumb pointers into flash (zero for reserved
+	 * slots), and the remainder is for having a reasonable number of device interrupts.
+	 *
+	 * @return a confidence from 0 to 100
+	 */
+	public static int score(byte[] bytes) {
+		int count = Math.min(bytes.length / 4, 16);
+		if (count < 2) {
+			return 0;
+		}
+		long sp = getWord(bytes, 0);
+		if (!STM32DeviceCatalog.isStackAddress(sp) || (sp & 3) != 0) {
+			return 0;
+		}
+		if (!isHandler(getWord(bytes, 1))) {
+			return 0;
+		}
+
+		int valid = 0;
+		for (int slot = 2; slot < count; slot++) {
+			long value = getWord(bytes, slot);
+			if (isReserved(slot) ? value == 0 : value == 0 || isHandler(value)) {
+				valid++;
+			}
+		}
+		int interrupts = Math.min(countInterrupts(bytes), MIN_INTERRUPTS);
+		return MIN_SCORE + 40 * valid / 14 + 10 * interrupts / MIN_INTERRUPTS;
+	}
+
+	/**
+	 * Count the device interrupt vectors: the slots after the 16 system exceptions up to the
+	 * first word that can't be a handler, ignoring trailing empty slots.
+	 */
+	public static int countInterrupts(byte[] bytes) {
+		int count = bytes.length / 4;
+		int last = 15;
+		for (int slot = 16; slot < count; slot++) {
+			long value = getWord(bytes, slot);
+			if (value != 0 && !isHandler(value)) {
+				break;
+			}
+			if (value != 0) {
+				last = slot;
+			}
+		}
+		return last - 15;
+	}
+
+	static boolean isHandler(long value) {
+		return (value & 1) != 0 && value >= FLASH_START && value < FLASH_END;
+	}
+
+	public static boolean isReserved(int slot) {
+		for (int reserved : RESERVED_SLOTS) {
+			if (slot == reserved) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static long getWord(byte[] bytes, int slot) {
+		int i = slot * 4;
+		return (bytes[i] & 0xffL) | (bytes[i + 1] & 0xffL) << 8 | (bytes[i + 2] & 0xffL) << 16 |
+			(bytes[i + 3] & 0xffL) << 24;
+	}
+}
@@ -15,394 +15,146 @@
  */
 package stm32;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 
+import ghidra.app.cmd.disassemble.DisassembleCommand;
+import ghidra.app.cmd.function.CreateFunctionCmd;
+import ghidra.app.util.MemoryBlockUtils;
 import ghidra.app.util.Option;
 import ghidra.app.util.bin.ByteProvider;
+import ghidra.app.util.bin.RandomAccessByteProvider;
 import ghidra.app.util.importer.MessageLog;
 import ghidra.app.util.opinion.AbstractLibrarySupportLoader;
 import ghidra.app.util.opinion.LoadSpec;
 import ghidra.framework.model.DomainObject;
 import ghidra.framework.store.LockException;
-import ghidra.program.flatapi.FlatProgramAPI;
-import ghidra.program.model.address.AddressOverflowException;
+import ghidra.program.database.mem.FileBytes;
+import ghidra.program.model.address.*;
+import ghidra.program.model.data.DataType;
 import ghidra.program.model.data.DataTypeManager;
 import ghidra.program.model.lang.LanguageCompilerSpecPair;
-import ghidra.program.model.listing.Data;
-import ghidra.program.model.listing.Program;
+import ghidra.program.model.listing.*;
 import ghidra.program.model.mem.Memory;
 import ghidra.program.model.mem.MemoryAccessException;
 import ghidra.program.model.mem.MemoryBlock;
 import ghidra.program.model.mem.MemoryConflictException;
+import ghidra.program.model.symbol.*;
+import ghidra.program.model.util.CodeUnitInsertionException;
 import ghidra.util.exception.CancelledException;
-import ghidra.util.exception.DuplicateNameException;
+import ghidra.util.exception.InvalidInputException;
 import ghidra.util.task.TaskMonitor;
-import ghidra.program.model.symbol.RefType;
-import ghidra.program.model.symbol.SourceType;
+import stm32.STM32Family.MemRegion;
+import stm32.STM32FlashLayout.FlashRun;
 
 /**
- * TODO: Provide class-level documentation that describes what this loader does.
+ * Loader for raw flash images of STM32 microcontrollers. The device family is picked from
+ * {@link STM32DeviceCatalog}, either by option or by looking at the vector table, and its
+ * memory map, vector table and peripheral registers are laid out around the image.
  */
 public class stm32Loader extends AbstractLibrarySupportLoader {
 
-	private static class RegLabel {
-		String label;
-		int addr;
-		private RegLabel(String label, int addr) {
-			this.label = label;
-			this.addr = addr;
-		}
-		
-	}
-	
-	private static final RegLabel [] USBFSRegs = {
-			new RegLabel("OTG_FS_GOTGCTL",0x0),
-			new RegLabel("OTG_FS_GOTGINT",0x4),
-			new RegLabel("OTG_FS_GAHBCFG",0x8),
-			new RegLabel("OTG_FS_GUSBCFG",0xc),
-			new RegLabel("OTG_FS_GRSTCTL",0x10),
-			new RegLabel("OTG_FS_GINTSTS",0x14),
-			new RegLabel("OTG_FS_GINTMSK",0x18),
-			new RegLabel("OTG_FS_GRXSTSR",0x1c),
-			new RegLabel("OTG_FS_GRXSTSP",0x20),
-			new RegLabel("OTG_FS_GRXFSIZ",0x24),
-			new RegLabel("OTG_FS_HNPTXFSIZ",0x28),
-			new RegLabel("OTG_FS_HNPTXSTS",0x2c),
-			new RegLabel("OTG_FS_GCCFG",0x38),
-			new RegLabel("OTG_FS_CID",0x3c),
-			new RegLabel("OTG_FS_HPTIZ",0x100),
-			new RegLabel("OTG_FS_DIEPTXF1",0x104),
-			new RegLabel("OTG_FS_DIEPTXF2",0x108),
-			new RegLabel("OTG_FS_DIEPTXF3",0x10c),
-			new RegLabel("OTG_FS_HCFG",0x400),
-			new RegLabel("OTG_FS_HFIR",0x404),
-			new RegLabel("OTG_FS_HFNUM",0x408),
-			new RegLabel("OTG_FS_HPTXSTS",0x410),
-			new RegLabel("OTG_FS_HAINT",0x414),
-			new RegLabel("OTG_FS_HAINTMSK",0x418),
-            new RegLabel("OTG_FS_HPRT", 0x440),
-            new RegLabel("OTG_FS_HCINTx", 0x508),
-            new RegLabel("OTG_FS_HCINTMSKx", 0x50C),
-            new RegLabel("OTG_FS_HCTSIZx", 0x510),
-            new RegLabel("OTG_FS_DCFG", 0x800),
-            new RegLabel("OTG_FS_DCTL", 0x804),
-            new RegLabel("OTG_FS_DSTS", 0x808),
-            new RegLabel("OTG_FS_DIEPMSK", 0x810),
-            new RegLabel("OTG_FS_DOEPMSK", 0x814),
-            new RegLabel("OTG_FS_DAINT", 0x818),
-            new RegLabel("OTG_FS_DAINTMSK", 0x81C),
-            new RegLabel("OTG_FS_DVBUSDIS", 0x828),
-            new RegLabel("OTG_FS_DVBUSPULSE", 0x82C),
-            new RegLabel("OTG_FS_DIEPEMPMSK", 0x834),
-            new RegLabel("OTG_FS_DIEPCTL0", 0x900),
-            new RegLabel("OTG_FS_DIEPINTx", 0x908),
-            new RegLabel("OTG_FS_DIEPTSIZ0", 0x910),
-            new RegLabel("OTG_FS_DIEPTSIZ1", 0x930),
-            new RegLabel("OTG_FS_DIEPTSIZ1", 0x950),
-            new RegLabel("OTG_FS_DIEPTSIZ1", 0x970),
-            new RegLabel("OTG_FS_DOEPCTL0", 0xB00),
-            new RegLabel("OTG_FS_DOEPCTL1", 0xB20),
-            new RegLabel("OTG_FS_DOEPCTL2", 0xB40),
-            new RegLabel("OTG_FS_DOEPCTL3", 0xB60),
-            new RegLabel("OTG_FS_DOEPINT", 0xB08),
-            new RegLabel("OTG_FS_DOEPTSIZ",0xB10),
-	};
-
-	private static final RegLabel [] USBHSRegs = {
-			new RegLabel("OTG_HS_GOTGCTL",0x0),
-			new RegLabel("OTG_HS_GOTGINT",0x4),
-			new RegLabel("OTG_HS_GAHBCFG",0x8),
-			new RegLabel("OTG_HS_GUSBCFG",0xc),
-			new RegLabel("OTG_HS_GRSTCTL",0x10),
-			new RegLabel("OTG_HS_GINTSTS",0x14),
-			new RegLabel("OTG_HS_GINTMSK",0x18),
-			new RegLabel("OTG_HS_GRXSTSR",0x1c),
-			new RegLabel("OTG_HS_GRXSTSP",0x20),
-			new RegLabel("OTG_HS_GRXFSIZ",0x24),
-			new RegLabel("OTG_HS_HNPTXFSIZ",0x28),
-			new RegLabel("OTG_HS_HNPTXSTS",0x2c),
-			new RegLabel("OTG_HS_GCCFG",0x38),
-			new RegLabel("OTG_HS_CID",0x3c),
-			new RegLabel("OTG_HS_HPTIZ",0x100),
-			new RegLabel("OTG_HS_DIEPTXF1",0x104),
-			new RegLabel("OTG_HS_DIEPTXF2",0x108),
-			new RegLabel("OTG_HS_DIEPTXF3",0x10C),
-            new RegLabel("OTG_HS_DIEPTXF5",0x110),
-            new RegLabel("OTG_HS_DIEPTXF6",0x114),
-            new RegLabel("OTG_HS_DIEPTXF7",0x118),
-			new RegLabel("OTG_HS_HCFG",0x400),
-			new RegLabel("OTG_HS_HFIR",0x404),
-			new RegLabel("OTG_HS_HFNUM",0x408),
-			new RegLabel("OTG_HS_HPTXSTS",0x410),
-			new RegLabel("OTG_HS_HAINT",0x414),
-			new RegLabel("OTG_HS_HAINTMSK",0x418),
-            new RegLabel("OTG_HS_HPRT", 0x440),
-            new RegLabel("OTG_HS_HCSPLT", 0x504),
-            new RegLabel("OTG_HS_HCINT", 0x508),
-            new RegLabel("OTG_HS_HCINTMSK", 0x50C),
-            new RegLabel("OTG_HS_HCTSIZx", 0x510),
-            new RegLabel("OTG_HS_HCDMA", 0x514),
-            new RegLabel("OTG_HS_HCCHAR0", 0x500),
-            new RegLabel("OTG_HS_HCCHAR1", 0x520),
-            new RegLabel("OTG_HS_HCCHAR2", 0x540),
-            new RegLabel("OTG_HS_HCCHAR3", 0x560),
-            new RegLabel("OTG_HS_HCCHAR4", 0x580),
-            new RegLabel("OTG_HS_HCCHAR5", 0x5A0),
-            new RegLabel("OTG_HS_HCCHAR6", 0x5c0),
-            new RegLabel("OTG_HS_HCCHAR7", 0x5e0),
-            new RegLabel("OTG_HS_HCCHAR8", 0x600),
-            new RegLabel("OTG_HS_HCCHAR9", 0x620),
-            new RegLabel("OTG_HS_HCCHAR10", 0x640),
-            new RegLabel("OTG_HS_HCCHAR11", 0x660),
-
-            new RegLabel("OTG_HS_DCFG", 0x800),
-            new RegLabel("OTG_HS_DCTL", 0x804),
-            new RegLabel("OTG_HS_DSTS", 0x808),
-            new RegLabel("OTG_HS_DIEPMSK", 0x810),
-            new RegLabel("OTG_HS_DOEPMSK", 0x814),
-            new RegLabel("OTG_HS_DAINT", 0x818),
-            new RegLabel("OTG_HS_DAINTMSK", 0x81C),
-            new RegLabel("OTG_HS_DVBUSDIS", 0x828),
-            new RegLabel("OTG_HS_DVBUSPULSE", 0x82C),
-            new RegLabel("OTG_HS_DIEPEMPMSK", 0x834),
-            new RegLabel("OTG_HS_DEACHINT", 0x838),
-            new RegLabel("OTG_HS_DEACHINTMSK", 0x83C),
-            new RegLabel("OTG_HS_DIEPEACHMSK1", 0x844),
-            new RegLabel("OTG_HS_DOEPEACHMSK1", 0x884),
-
-            new RegLabel("OTG_HS_DIEPCTL0", 0x900),
-            new RegLabel("OTG_HS_DIEPCTL1", 0x920),
-            new RegLabel("OTG_HS_DIEPCTL2", 0x940),
-            new RegLabel("OTG_HS_DIEPCTL3", 0x960),
-            new RegLabel("OTG_HS_DIEPCTL4", 0x980),
-            new RegLabel("OTG_HS_DIEPCTL5", 0x9A0),
-            new RegLabel("OTG_HS_DIEPCTL6", 0x9C0),
-            new RegLabel("OTG_HS_DIEPCTL7", 0x9E0),
-            
-            new RegLabel("OTG_HS_DIEPCTL0", 0x900),
-            new RegLabel("OTG_HS_DIEPINTx", 0x908),
-            new RegLabel("OTG_HS_DIEPTSIZ0", 0x910),
-            new RegLabel("OTG_HS_DIEPTSIZ1", 0x930),
-            new RegLabel("OTG_HS_DIEPTSIZ1", 0x950),
-            new RegLabel("OTG_HS_DIEPTSIZ1", 0x970),
-            new RegLabel("OTG_HS_DOEPCTL0", 0xB00),
-            new RegLabel("OTG_HS_DOEPCTL1", 0xB20),
-            new RegLabel("OTG_HS_DOEPCTL2", 0xB40),
-            new RegLabel("OTG_HS_DOEPCTL3", 0xB60),
-            new RegLabel("OTG_HS_DOEPINT", 0xB08),
-            new RegLabel("OTG_HS_DOEPTSIZ",0xB10),
-	};
-	
-
 	private static class STM32InterruptVector{
 		String name;
 		int addr;
+		boolean armv7m;
 		private STM32InterruptVector(String name, int addr)
+		{
+			this(name, addr, false);
+		}
+		// Exceptions that only exist on Cortex-M3 and up, not on the Cortex-M0
+		private STM32InterruptVector(String name, int addr, boolean armv7m)
 		{
 			this.name = name;
 			this.addr = addr;
+			this.armv7m = armv7m;
 		}
 	}
 	
+	// Cortex-M system exceptions, the device interrupts that follow them come from the SVD
 	private static final STM32InterruptVector [] STM32IVT = {
 			new STM32InterruptVector("RESET",0x4),
 			new STM32InterruptVector("NMI",0x8),
 			new STM32InterruptVector("HardFault",0xC),
-			new STM32InterruptVector("MemManage",0x10),
-			new STM32InterruptVector("BusFault",0x14),
-			new STM32InterruptVector("UsageFault",0x18),
+			new STM32InterruptVector("MemManage",0x10,true),
+			new STM32InterruptVector("BusFault",0x14,true),
+			new STM32InterruptVector("UsageFault",0x18,true),
 			new STM32InterruptVector("SVCall",0x2C),
-			new STM32InterruptVector("Debug Monitor",0x30),
+			new STM32InterruptVector("Debug Monitor",0x30,true),
 			new STM32InterruptVector("PendSV",0x38),
 			new STM32InterruptVector("SysTick",0x3C),
-			new STM32InterruptVector("WWDG",0x40),
-			new STM32InterruptVector("PVD",0x44),
-			new STM32InterruptVector("TAMP_STAMP",0x48),
-			new STM32InterruptVector("RTC_WKUP",0x4C),
-			new STM32InterruptVector("FLASH",0x50),
-			new STM32InterruptVector("RCC",0x54),
-			new STM32InterruptVector("EXTI0",0x58),
-			new STM32InterruptVector("EXTI1",0x5C),
-			new STM32InterruptVector("EXTI2",0x60),
-			new STM32InterruptVector("EXTI3",0x64),
-			new STM32InterruptVector("EXTI4",0x68),
-			new STM32InterruptVector("DMA1_Stream0",0x6C),
-			new STM32InterruptVector("DMA1_Stream1",0x70),
-			new STM32InterruptVector("DMA1_Stream2",0x74),
-			new STM32InterruptVector("DMA1_Stream3",0x78),
-			new STM32InterruptVector("DMA1_Stream4",0x7C),
-			new STM32InterruptVector("DMA1_Stream5",0x80),
-			new STM32InterruptVector("DMA1_Stream6",0x84),
-			new STM32InterruptVector("ADC",0x88),
-			new STM32InterruptVector("CAN1_TX",0x8C),
-			new STM32InterruptVector("CAN1_RX0",0x90),
-			new STM32InterruptVector("CAN1_RX1",0x94),
-			new STM32InterruptVector("CAN1_SCE",0x98),
-			new STM32InterruptVector("EXTI9_5",0x9C),
-			new STM32InterruptVector("TIM1_BRK_TIM9",0xA0),
-			new STM32InterruptVector("TIM1_UP_TIM10",0xA4),
-			new STM32InterruptVector("TIM1_TRG_COM_TIM11",0xA8),
-			new STM32InterruptVector("TIM1_CC",0xAC),
-			new STM32InterruptVector("TIM2",0xB0),
-			new STM32InterruptVector("TIM3",0xB4),
-			new STM32InterruptVector("TIM4",0xB8),
-			new STM32InterruptVector("I2C1_EV",0xBc),
-			new STM32InterruptVector("I2C1_ER",0xC0),
-			new STM32InterruptVector("I2C2_EV",0xC4),
-			new STM32InterruptVector("I2C2_ER",0xC8),
-			new STM32InterruptVector("SPI1",0xCC),
-			new STM32InterruptVector("SPI2",0xD0),
-			new STM32InterruptVector("USART1",0xD4),
-			new STM32InterruptVector("USART2",0xD8),
-			new STM32InterruptVector("USART3",0xDC),
-			new STM32InterruptVector("EXTI15_10",0xE0),
-			new STM32InterruptVector("RTC_Alarm",0xE4),
-			new STM32InterruptVector("OTG_FS_WKUP",0xE8),
-			new STM32InterruptVector("TIM8_BRK_TIM12",0xEC),
-			new STM32InterruptVector("TIM8_UP_TIM13",0xF0),
-			new STM32InterruptVector("TIM8_TRG_COM_TIM14",0xF4),
-			new STM32InterruptVector("TIM8_CC",0xF8),
-			new STM32InterruptVector("DMA1_Stream7",0xFC),
-			new STM32InterruptVector("FSMC",0x100),
-			new STM32InterruptVector("SDIO",0x104),
-			new STM32InterruptVector("TIM5",0x108),
-			new STM32InterruptVector("SPI3",0x10C),
-			new STM32InterruptVector("UART4",0x110),
-			new STM32InterruptVector("UART5",0x114),
-			new STM32InterruptVector("TIM6_DAC",0x118),
-			new STM32InterruptVector("TIM7",0x11c),
-			new STM32InterruptVector("DMA2_Stream0",0x120),
-			new STM32InterruptVector("DMA2_Stream1",0x124),
-			new STM32InterruptVector("DMA2_Stream2",0x128),
-			new STM32InterruptVector("DMA2_Stream3",0x12C),
-			new STM32InterruptVector("DMA2_Stream4",0x130),
-			new STM32InterruptVector("ETH",0x134),
-			new STM32InterruptVector("ETH_WKUP",0x138),
-			new STM32InterruptVector("CAN2_TX",0x13C),
-			new STM32InterruptVector("CAN2_RX0",0x140),
-			new STM32InterruptVector("CAN2_RX1",0x144),
-			new STM32InterruptVector("CAN2_SCE",0x148),
-			new STM32InterruptVector("OTG_FS",0x14C),
-			new STM32InterruptVector("DMA2_Stream5",0x150),
-			new STM32InterruptVector("DMA2_Stream6",0x154),
-			new STM32InterruptVector("DMA2_Stream7",0x158),
-			new STM32InterruptVector("USART6",0x15C),
-			new STM32InterruptVector("I2C3_EV",0x160),
-			new STM32InterruptVector("I2C3_ER",0x164),
-			new STM32InterruptVector("OTG_HS_EP1_OUT",0x168),
-			new STM32InterruptVector("OTG_HS_EP1_IN",0x16C),
-			new STM32InterruptVector("OTG_HS_WKUP",0x170),
-			new STM32InterruptVector("OTG_HS",0x174),
-			new STM32InterruptVector("DCMI",0x178),
-			new STM32InterruptVector("CRYP",0x17C),
-			new STM32InterruptVector("HACH_RNG",0x180),
-		
 		};	
 	
-	private static class STM32MemRegion {
-		String name;
-		int addr;
-		int size;
-		boolean read;
-		boolean write;
-		boolean execute;
-		private STM32MemRegion(String name, int addr, int size, boolean read, boolean write, boolean execute) {
-			this.name = name;
-			this.addr = addr;
-			this.size = size;
-			this.read = read;
-			this.write = write;
-			this.execute = execute;
-		}
-	}
-	// Pull these regions from the datasheet
-	private static final STM32MemRegion [] STM32MEM = {
-			new STM32MemRegion("TIM2",0x40000000,0x3FF,true,true,false),
-			new STM32MemRegion("TIM3",0x40000400,0x3FF,true,true,false),
-			new STM32MemRegion("TIM4",0x40000800,0x3FF,true,true,false),
-			new STM32MemRegion("TIM5",0x40000C00,0x3FF,true,true,false),
-			new STM32MemRegion("TIM6",0x40001000,0x3FF,true,true,false),
-			new STM32MemRegion("TIM7",0x40001400,0x3FF,true,true,false),
-			new STM32MemRegion("TIM12",0x40001800,0x3FF,true,true,false),
-			new STM32MemRegion("TIM13",0x40001C00,0x3FF,true,true,false),
-			new STM32MemRegion("TIM14",0x40002000,0x3FF,true,true,false),
-			new STM32MemRegion("RTC/BKP",0x40002800,0x3FF,true,true,false),
-			new STM32MemRegion("WWDG",0x40002C00,0x3FF,true,true,false),
-			new STM32MemRegion("IWDG",0x40003000,0x3FF,true,true,false),
-			new STM32MemRegion("SPI2/I2S2",0x40003800,0x3FF,true,true,false),
-			new STM32MemRegion("SPI3/I2S3",0x40003C00,0x3FF,true,true,false),
-			new STM32MemRegion("USART2",0x40004400,0x3FF,true,true,false),
-			new STM32MemRegion("USART3",0x40004800,0x3FF,true,true,false),
-			new STM32MemRegion("USART4",0x40004C00,0x3FF,true,true,false),
-			new STM32MemRegion("USART5",0x40005000,0x3FF,true,true,false),
-			new STM32MemRegion("I2C1",0x40005400,0x3FF,true,true,false),
-			new STM32MemRegion("I2C2",0x40005800,0x3FF,true,true,false),
-			new STM32MemRegion("I2C3",0x40005C00,0x3FF,true,true,false),
-			new STM32MemRegion("CAN1",0x40006400,0x3FF,true,true,false),
-			new STM32MemRegion("CAN2",0x40006800,0x3FF,true,true,false),
-			new STM32MemRegion("PWR",0x40007000,0x3FF,true,true,false),
-			new STM32MemRegion("DAC",0x40007400,0x3FF,true,true,false),
-			new STM32MemRegion("TIM1",0x40010000,0x3FF,true,true,false),
-			new STM32MemRegion("TIM8",0x40010400,0x3FF,true,true,false),
-			new STM32MemRegion("USART1",0x40011000,0x3FF,true,true,false),
-			new STM32MemRegion("USART6",0x40011400,0x3FF,true,true,false),
-			new STM32MemRegion("ADC1/2/3",0x40012000,0x3FF,true,true,false),
-			new STM32MemRegion("SDIO",0x40012C00,0x3FF,true,true,false),
-			new STM32MemRegion("SPI1",0x40013000,0x3FF,true,true,false),
-			new STM32MemRegion("SYSCFG",0x40013800,0x3FF,true,true,false),
-			new STM32MemRegion("EXTI",0x40013C00,0x3FF,true,true,false),
-			new STM32MemRegion("TIM9",0x40014000,0x3FF,true,true,false),
-			new STM32MemRegion("TIM10",0x40014400,0x3FF,true,true,false),
-			new STM32MemRegion("TIM11",0x40014800,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOA",0x40020000,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOB",0x40020400,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOC",0x40020800,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOD",0x40020c00,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOE",0x40021000,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOF",0x40021400,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOG",0x40021800,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOH",0x40021c00,0x3FF,true,true,false),
-			new STM32MemRegion("GPIOI",0x40022000,0x3FF,true,true,false),
-			new STM32MemRegion("CRC",0x40023000,0x3FF,true,true,false),
-			new STM32MemRegion("RCC",0x40023800,0x3FF,true,true,false),
-			new STM32MemRegion("Flash Interface Register",0x40023C00,0x3FF,true,true,false),
-			new STM32MemRegion("BKPSRAM",0x40024000,0x3FF,true,true,false),
-			new STM32MemRegion("DMA1",0x40026000,0x3FF,true,true,false),
-			new STM32MemRegion("DMA2",0x40026400 ,0x3FF,true,true,false),
-			new STM32MemRegion("Ethernet Mac",0x40028000 ,0x13FF,true,true,false),
-			new STM32MemRegion("USB OTG HS",0x40040000 ,0x3FFFF,true,true,false),
-			new STM32MemRegion("USB OTG FS",0x50000000 ,0x3FFFF,true,true,false),
-			new STM32MemRegion("DCMI",0x50050000 ,0x3FF,true,true,false),
-			new STM32MemRegion("CRYP",0x50060000 ,0x3FF,true,true,false),
-			new STM32MemRegion("HASH",0x50060400 ,0x3FF,true,true,false),
-			new STM32MemRegion("RNG",0x50060800 ,0x3FF,true,true,false),
-			new STM32MemRegion("FSMC Control Register",0xA0000000 ,0xFFF,true,true,false),
-			new STM32MemRegion("SRAM",0x20000000 ,0x20000,true,true,true),
-			new STM32MemRegion("System Memory",0x1FFF0000 ,0x77FF,true,true,true),
-			// TODO: Add the ability to select and load these in from the loader...
-			new STM32MemRegion("OTP",0x1FFF7800 ,0x20F,true,false,false),
-			new STM32MemRegion("Option Bytes",0x1FFFC000 ,0xF,true,false,false),
+	// Flash is always mapped here, the boot pins only control what is aliased at 0x0
+	private static final int FLASH_BASE = 0x8000000;
+	// Largest flash in the catalog, 2MB
+	private static final int FLASH_MAX_SIZE = 0x200000;
+
+	// Part number or family name from STM32DeviceCatalog, or "auto" to guess from the image
+	public static final String OPTION_DEVICE = "Device";
+	public static final String DEVICE_AUTO = "auto";
+	public static final String OPTION_FLASH_FILE_BYTES = "Map flash from file bytes";
+	// Declared flash size of the part, "0" sizes the flash block to the image
+	public static final String OPTION_FLASH_SIZE = "Flash size";
+	public static final String OPTION_SKIP_ERASED = "Skip erased flash sectors";
+	public static final String OPTION_SCAN_LITERALS = "Scan literal pools for peripheral references";
+	// Leave register labels to STM32RegisterLabelAnalyzer, which only labels referenced ones
+	public static final String OPTION_LAZY_LABELS = "Label only referenced registers";
+	public static final String OPTION_CREATE_FUNCTIONS = "Create functions from vector table";
+	public static final String OPTION_STARTUP_DATA = "Map .data and .bss from startup code";
+	// File or directory to write load metrics to as JSON, empty to only log them
+	public static final String OPTION_METRICS_FILE = "Metrics JSON file";
+	// One structure per peripheral at its base instead of a label per register
+	public static final String OPTION_STRUCTURES = "Apply peripheral structures";
+	// Merge the peripherals on each bus into one block, see STM32Family.getBuses()
+	public static final String OPTION_COALESCE = "One memory block per peripheral bus";
+	// Reuse the plan of an earlier import of the same image, see STM32PlanCache
+	public static final String OPTION_PLAN_CACHE = "Cache load plans";
+	// Dumps of the other memories of the part, raw or in a record format, empty for none
+	public static final String OPTION_SYSTEM_MEMORY_FILE = "System Memory dump";
+	public static final String OPTION_OTP_FILE = "OTP dump";
+	public static final String OPTION_OPTION_BYTES_FILE = "Option Bytes dump";
+	// Name library functions from the hash index in data/hal, see STM32HalIdentifier. Off by
+	// default since the index is not shipped with the extension
+	public static final String OPTION_HAL_FUNCTIONS = "Identify HAL functions";
+
+	// Options that change the plan, recorded in the program so a later build is planned the
+	// same way, see loadProgramInto
+	private static final String[] PLAN_OPTIONS = { OPTION_STRUCTURES, OPTION_COALESCE,
+		OPTION_LAZY_LABELS, OPTION_CREATE_FUNCTIONS, OPTION_STARTUP_DATA };
+	private static final String PLAN_OPTIONS_PROPERTY = "STM32 Load Options";
+
+	// Each dump option and the family region it is loaded into
+	private static final String[][] DUMP_REGIONS = {
+		{ OPTION_SYSTEM_MEMORY_FILE, "System Memory" },
+		{ OPTION_OTP_FILE, "OTP" },
+		{ OPTION_OPTION_BYTES_FILE, "Option Bytes" },
 	};
+
 	@Override
 	public String getName() {
 
-		// TODO: Name the loader.  This name must match the name of the loader in the .opinion 
-		// files.
-
-		return "STM32F2";
+		return "STM32";
 	}
 
 	@Override
 	public Collection<LoadSpec> findSupportedLoadSpecs(ByteProvider provider) throws IOException {
 		List<LoadSpec> loadSpecs = new ArrayList<>();
 
-		// TODO: Examine the bytes in 'provider' to determine if this loader can load it.  If it 
-		// can load it, return the appropriate load specifications.
-		
+		// Only accept images that start with a plausible vector table, this is a single small
+		// read so it stays cheap when every loader is offered every file
+		byte[] ivt = readVectorTable(provider);
+		int score = ivt.length < 8 ? 0 : STM32VectorTable.score(ivt);
+		if (score < STM32VectorTable.MIN_SCORE) {
+			return loadSpecs;
+		}
+
 		// The STM32 has a 32 bit Arm Cortex LE core, so that is the language that we will use
-		loadSpecs.add(new LoadSpec(this, 0, new LanguageCompilerSpecPair("ARM:LE:32:Cortex", "default"), true));
+		loadSpecs.add(new LoadSpec(this, 0, new LanguageCompilerSpecPair("ARM:LE:32:Cortex", "default"),
+			score >= STM32VectorTable.PREFERRED_SCORE));
 		return loadSpecs;
 	}
 
@@ -411,82 +163,1101 @@ public class stm32Loader extends AbstractLibrarySupportLoader {
 			Program program, TaskMonitor monitor, MessageLog log)
 			throws CancelledException, IOException {
 
-		FlatProgramAPI api = new FlatProgramAPI(program,monitor);
-		InputStream inStream = provider.getInputStream(0);
-		Memory mem = program.getMemory();
-		// TODO: Load the bytes from 'provider' into the 'program'.
-		// This is where we actually "Load" the program into ghidra
-		
-		// First we loop through our memory map that we created:
-		for(STM32MemRegion memregion: STM32MEM)	{
+		STM32LoadMetrics metrics = new STM32LoadMetrics();
+		metrics.begin("device");
+		STM32Device device = getDevice(provider, options, log);
+		STM32Family family = device.getFamily();
+		log.appendMsg("Loading as " + device.getPartNumber());
+
+		metrics.begin("flash");
+		long length = -1;
+		if (STM32RecordFile.getFormat(provider) != null) {
+			logRawImageOptions(options, log);
+			loadRecords(STM32RecordFile.open(provider, monitor), null, family, program, monitor,
+				log, metrics);
+		}
+		else {
+			length = loadFlash(provider, options, family, program, monitor, log, metrics);
+		}
+		loadDumps(options, family, program, monitor, log, metrics);
+
+		// Only the selected family's peripheral map is ever read
+		metrics.begin("peripheral map");
+		STM32PeripheralDatabase peripherals = null;
+		try {
+			peripherals = family.getPeripherals();
+		}
+		catch (IOException e) {
+			log.appendMsg("No peripheral map for " + family + ", add " + family.getSvdFile() +
+				" to the data/svd directory: " + e.getMessage());
+		}
+
+		boolean lazyLabels = getOption(options, OPTION_LAZY_LABELS, false);
+		STM32RegisterLabeler.recordDevice(program, device, lazyLabels);
+		recordPlanOptions(program, options);
+
+		// The plan only depends on the image and the options, an image seen before can skip
+		// straight to writing it
+		STM32PlanCache cache = null;
+		String cacheKey = null;
+		STM32PlanCache.Entry cached = null;
+		if (peripherals != null && getOption(options, OPTION_PLAN_CACHE, true)) {
+			metrics.begin("plan cache");
+			try {
+				cacheKey = STM32PlanCache.getKey(provider,
+					getCacheContext(device, peripherals, options), monitor);
+				cache = STM32PlanCache.getDefault();
+				STM32PeripheralTypes types =
+					new STM32PeripheralTypes(peripherals, program.getDataTypeManager());
+				cached = cache.get(cacheKey, types::findType);
+				metrics.count("plan cache hits", cached != null ? 1 : 0);
+			}
+			catch (IOException e) {
+				log.appendMsg("Not using the plan cache: " + e.getMessage());
+			}
+		}
+
+		// Work out everything we want to create first, then write it in a single pass
+		metrics.begin("plan");
+		STM32LoadPlan plan = cached != null ? cached.plan
+				: buildPlan(program, device, peripherals, options, log);
+		plan.apply(program, monitor, log, metrics);
+
+		if (peripherals != null) {
+			STM32RegisterIndex index = new STM32RegisterIndex(peripherals);
+			STM32LiteralScanner.Hits hits = cached != null ? cached.hits : null;
+			if (getOption(options, OPTION_SCAN_LITERALS, true)) {
+				metrics.begin("literal scan");
+				hits = scanLiterals(program, index, hits, monitor, metrics);
+			}
+			if (cache != null && cached == null) {
+				metrics.begin("plan cache");
+				cache.put(cacheKey, plan,
+					hits != null ? hits : new STM32LiteralScanner.Hits(new long[0], new long[0],
+						new int[0]));
+			}
+			if (lazyLabels) {
+				metrics.begin("register labels");
+				STM32RegisterLabeler labeler = new STM32RegisterLabeler(program, index);
+				int created = labeler.labelReferenced(program.getMemory(), monitor, log);
+				metrics.count("register labels", created);
+				metrics.count("register labels skipped", labeler.getRegisterCount() - created);
+			}
+		}
+
+		if (getOption(options, OPTION_HAL_FUNCTIONS, false)) {
+			identifyHalFunctions(program, null, monitor, log, metrics);
+		}
+
+		// Lets a later build of the firmware be loaded into this program, see loadProgramInto
+		if (length >= 0) {
+			metrics.begin("page hashes");
+			STM32FlashPages.compute(provider, length, monitor).record(program);
+		}
+
+		metrics.report(log);
+		String metricsFile = getOption(options, OPTION_METRICS_FILE, "").trim();
+		if (!metricsFile.isEmpty()) {
+			try {
+				metrics.writeJson(new File(metricsFile), program.getName());
+			}
+			catch (IOException e) {
+				log.appendMsg("Unable to write metrics to " + metricsFile + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Load a new build of the firmware into a program this loader created from an earlier
+	 * build. The image is compared page by page with the hashes recorded at import, and only
+	 * the pages that differ are rewritten, cleared and seeded again with vectors, references
+	 * and labels. The device and memory map of the program are kept, and everything outside
+	 * the changed pages is left as it is.
+	 */
+	@Override
+	protected boolean loadProgramInto(ByteProvider provider, LoadSpec loadSpec,
+			List<Option> options, MessageLog log, Program program, TaskMonitor monitor)
+			throws IOException, CancelledException {
+		// Only this loader records page hashes, so they also vouch for the language
+		if (STM32RecordFile.getFormat(provider) != null) {
+			log.appendMsg("Only raw images can be loaded into an existing program, import " +
+				provider.getName() + " as a new program");
+			return false;
+		}
+		STM32FlashPages previous = STM32FlashPages.forProgram(program);
+		STM32Device device = STM32RegisterLabeler.getDevice(program);
+		if (previous == null || device == null) {
+			log.appendMsg(program.getName() + " has no STM32 flash page hashes, import " +
+				provider.getName() + " as a new program");
+			return false;
+		}
+
+		STM32LoadMetrics metrics = new STM32LoadMetrics();
+		metrics.begin("page hashes");
+		long length = provider.length();
+		STM32FlashPages pages = STM32FlashPages.compute(provider, length, monitor);
+		AddressSet changed = new AddressSet();
+		int changedPages = 0;
+		for (long[] run : pages.diff(previous)) {
+			changed.add(toAddr(program, FLASH_BASE + run[0]),
+				toAddr(program, FLASH_BASE + run[1] - 1));
+			changedPages += (run[1] - run[0] + STM32FlashPages.PAGE_SIZE - 1) /
+				STM32FlashPages.PAGE_SIZE;
+		}
+		log.appendMsg(String.format("%d of %d flash pages changed", changedPages,
+			Math.max(pages.getPageCount(), previous.getPageCount())));
+		if (changed.isEmpty()) {
+			return true;
+		}
+		if (!changed.subtract(program.getMemory().getAllInitializedAddressSet()).isEmpty()) {
+			log.appendMsg("The image changes flash that was not loaded into " +
+				program.getName() + ", import it as a new program");
+			return false;
+		}
+
+		metrics.begin("peripheral map");
+		STM32PeripheralDatabase peripherals = null;
+		try {
+			peripherals = device.getFamily().getPeripherals();
+		}
+		catch (IOException e) {
+			log.appendMsg("No peripheral map for " + device.getFamily() + ": " + e.getMessage());
+		}
+
+		// Both images are planned with the options the program was imported with
+		List<Option> planOptions = getRecordedPlanOptions(program);
+		if (planOptions == null) {
+			log.appendMsg(program.getName() + " has no recorded load options, using the " +
+				"current ones");
+			planOptions = options;
+		}
+		boolean startupData = getOption(planOptions, OPTION_STARTUP_DATA, true);
+		MemRegion sram = device.getFamily().getRegions().get(0);
+
+		// What the old image planned is read from the program before its bytes are replaced
+		metrics.begin("plan");
+		STM32LoadPlan before =
+			buildPlan(program, device, peripherals, planOptions, new MessageLog());
+		STM32StartupData oldStartup =
+			startupData ? findStartupData(program, sram, device.getSramSize()) : null;
+
+		metrics.begin("flash");
+		List<Function> overlapping = new ArrayList<>();
+		program.getFunctionManager().getFunctionsOverlapping(changed).forEachRemaining(
+			overlapping::add);
+		Listing listing = program.getListing();
+		ReferenceManager refManager = program.getReferenceManager();
+		for (AddressRange range : changed) {
+			monitor.checkCanceled();
+			listing.clearCodeUnits(range.getMinAddress(), range.getMaxAddress(), false);
+			refManager.removeAllReferencesFrom(range.getMinAddress(), range.getMaxAddress());
+			// Past the end of a shorter image the flash reads as erased
+			byte[] bytes = new byte[(int) range.getLength()];
+			Arrays.fill(bytes, (byte) 0xFF);
+			long offset = range.getMinAddress().getOffset() - FLASH_BASE;
+			if (offset < length) {
+				byte[] image = provider.readBytes(offset, Math.min(bytes.length, length - offset));
+				System.arraycopy(image, 0, bytes, 0, image.length);
+			}
 			try {
-				mem.createUninitializedBlock(memregion.name, api.toAddr(memregion.addr), memregion.size, false);
-				api.createLabel(api.toAddr(memregion.addr),memregion.name.replace(" ","_"),false);
-			} catch (LockException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (DuplicateNameException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (MemoryConflictException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (AddressOverflowException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				program.getMemory().setBytes(range.getMinAddress(), bytes);
+			}
+			catch (MemoryAccessException e) {
+				log.appendMsg("Unable to update " + range.getMinAddress() + ": " + e.getMessage());
+				return false;
+			}
+			metrics.count(STM32LoadMetrics.FLASH_BYTES, bytes.length);
+		}
+
+		// SRAM already exists, so the plans never contain the startup blocks. A new build
+		// usually moves _sidata and may resize .data and .bss, which are laid out again here.
+		STM32StartupData newStartup =
+			startupData ? findStartupData(program, sram, device.getSramSize()) : null;
+		if (!isSameStartupData(oldStartup, newStartup)) {
+			metrics.begin("startup data");
+			if (!remapStartupData(program, sram, device.getSramSize(), oldStartup, newStartup,
+				monitor, log, metrics)) {
+				// Returning false rolls back everything done to the program so far
+				log.appendMsg("Unable to lay out .data and .bss for the new image, import " +
+					provider.getName() + " as a new program");
+				return false;
+			}
+		}
+
+		metrics.begin("plan");
+		STM32LoadPlan after = buildPlan(program, device, peripherals, planOptions, log);
+		if (!after.hasSameBlocks(before)) {
+			log.appendMsg("The new image lays out memory differently, the memory map was not " +
+				"updated");
+		}
+		SymbolTable symbolTable = program.getSymbolTable();
+		for (STM32LoadPlan.LabelSpec label : after.getRemovedLabels(before)) {
+			Symbol symbol = symbolTable.getGlobalSymbol(label.name, toAddr(program, label.addr));
+			if (symbol != null && symbol.getSource() == SourceType.IMPORTED) {
+				symbol.delete();
+			}
+		}
+		for (long addr : after.getRemovedFunctions(before)) {
+			symbolTable.removeExternalEntryPoint(toAddr(program, addr));
+		}
+		after.getUpdate(before, addr -> changed.contains(toAddr(program, addr))).apply(program,
+			monitor, log, metrics);
+
+		// Functions that ran into a changed page get their code and body back
+		if (!overlapping.isEmpty()) {
+			metrics.begin("functions");
+			AddressSet entries = new AddressSet();
+			for (Function function : overlapping) {
+				entries.add(function.getEntryPoint());
+			}
+			new DisassembleCommand(entries, null, true).applyTo(program, monitor);
+			for (Function function : overlapping) {
+				monitor.checkCanceled();
+				CreateFunctionCmd.fixupFunctionBody(program, function, monitor);
+			}
+		}
+
+		if (peripherals != null) {
+			STM32RegisterIndex index = new STM32RegisterIndex(peripherals);
+			if (getOption(options, OPTION_SCAN_LITERALS, true)) {
+				metrics.begin("literal scan");
+				STM32LiteralScanner scanner = new STM32LiteralScanner(index);
+				for (AddressRange range : changed) {
+					STM32LiteralScanner.Hits hits = scanner.scan(program,
+						range.getMinAddress().getOffset(), range.getMaxAddress().getOffset(),
+						monitor);
+					STM32LiteralScanner.apply(program, hits, monitor);
+					metrics.count("literal references", hits.size());
+				}
+			}
+			if (STM32RegisterLabeler.isLazy(program)) {
+				metrics.begin("register labels");
+				metrics.count("register labels", new STM32RegisterLabeler(program, index)
+						.labelReferenced(changed, monitor, log));
+			}
+		}
+
+		if (getOption(options, OPTION_HAL_FUNCTIONS, false)) {
+			identifyHalFunctions(program, changed, monitor, log, metrics);
+		}
+
+		pages.record(program);
+		metrics.report(log);
+		return true;
+	}
+
+	/**
+	 * Reference every peripheral address that appears as an aligned word in flash. This gives
+	 * the register labels their references up front instead of waiting for analysis to find
+	 * each literal pool.
+	 *
+	 * @param cached results of an earlier scan of the same image, or null to scan
+	 * @return the scan results
+	 */
+	private STM32LiteralScanner.Hits scanLiterals(Program program, STM32RegisterIndex index,
+			STM32LiteralScanner.Hits cached, TaskMonitor monitor, STM32LoadMetrics metrics)
+			throws CancelledException {
+		STM32LiteralScanner.Hits hits = cached;
+		if (hits == null) {
+			monitor.setMessage("Scanning literal pools...");
+			hits = new STM32LiteralScanner(index).scan(program, FLASH_BASE,
+				FLASH_BASE + FLASH_MAX_SIZE - 1, monitor);
+		}
+		STM32LiteralScanner.apply(program, hits, monitor);
+
+		int registers = 0;
+		for (int entry : hits.register) {
+			if (entry != STM32RegisterIndex.NONE) {
+				registers++;
 			}
 		}
+		metrics.count("literal references", hits.size());
+		metrics.count("literal register references", registers);
+		return hits;
+	}
+
+	/**
+	 * Name the HAL, LL and CMSIS functions found in the index shipped with the extension.
+	 * Nothing is done when the extension was built without one.
+	 *
+	 * @param restrict only functions starting in this set are looked up, or null for all
+	 */
+	private void identifyHalFunctions(Program program, AddressSetView restrict,
+			TaskMonitor monitor, MessageLog log, STM32LoadMetrics metrics)
+			throws CancelledException {
+		metrics.begin("hal functions");
+		STM32HalIndex index;
 		try {
-			mem.createInitializedBlock("Main Memory", api.toAddr(0x8000000), inStream, 0xFFFFF, monitor, false);
-		} catch (LockException | MemoryConflictException | AddressOverflowException | CancelledException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			index = STM32HalIndex.load();
+		}
+		catch (FileNotFoundException e) {
+			// Built without running the buildHalIndex task
+			return;
 		}
+		catch (IOException e) {
+			log.appendMsg("Unable to read the HAL function index: " + e.getMessage());
+			return;
+		}
+		monitor.setMessage("Identifying HAL functions...");
+		STM32HalIdentifier identifier = new STM32HalIdentifier(index);
+		STM32HalIdentifier.Matches matches = identifier.identify(program, restrict, monitor);
+		metrics.count("hal candidates", matches.candidates);
+		metrics.count("hal ambiguous", matches.ambiguous);
+		identifier.apply(program, matches, monitor, log, metrics);
+	}
 
+	/**
+	 * Everything besides the image bytes that the plan depends on, for the plan cache key.
+	 * Where the metrics are written and the steps that run after the plan don't change it
+	 * and are left out.
+	 */
+	private static String getCacheContext(STM32Device device,
+			STM32PeripheralDatabase peripherals, List<Option> options) {
+		StringBuilder sb = new StringBuilder(device.getPartNumber());
+		sb.append('\n').append(device.getFamily().getSvdFile()).append(' ').append(
+			peripherals.getSourceStamp());
+		for (Option option : options) {
+			String name = option.getName();
+			if (!name.equals(OPTION_METRICS_FILE) && !name.equals(OPTION_PLAN_CACHE) &&
+				!name.equals(OPTION_HAL_FUNCTIONS)) {
+				sb.append('\n').append(name).append('=').append(option.getValue());
+			}
+			// What the plan leaves uninitialized depends on how much of each dump there is
+			for (String[] dump : DUMP_REGIONS) {
+				String path = name.equals(dump[0]) ? String.valueOf(option.getValue()).trim() : "";
+				if (!path.isEmpty()) {
+					File file = new File(path);
+					sb.append(' ').append(file.length()).append(':').append(file.lastModified());
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Collect the memory map, the vector table and the register labels into a plan. The
+	 * flash block must already exist since the vector table is read from it.
+	 */
+	private STM32LoadPlan buildPlan(Program program, STM32Device device,
+			STM32PeripheralDatabase peripherals, List<Option> options, MessageLog log) {
+		boolean structures = getOption(options, OPTION_STRUCTURES, true);
+		boolean lazyLabels = getOption(options, OPTION_LAZY_LABELS, false);
+		STM32LoadPlan plan = new STM32LoadPlan();
+		Memory mem = program.getMemory();
+		STM32Family family = device.getFamily();
+
+		// Read the whole vector table in one go, a short image just yields fewer vectors
+		byte[] ivt = new byte[STM32VectorTable.SNIFF_LENGTH];
+		int ivtLength = 0;
 		try {
+			ivtLength = mem.getBytes(toAddr(program, FLASH_BASE), ivt);
+		}
+		catch (MemoryAccessException e) {
+			log.appendMsg("Unable to read the vector table: " + e.getMessage());
+		}
+
+		// First we loop through the memory map of the family, main SRAM is sized for the part
+		List<MemRegion> regions = family.getRegions();
+		for (int i = 0; i < regions.size(); i++) {
+			MemRegion memregion = regions.get(i);
+			long size = i == 0 ? device.getSramSize() : memregion.size;
+			// Regions loaded from a record file or a dump only need blocks for what is left
+			AddressSetView loaded = mem.intersectRange(toAddr(program, memregion.addr),
+				toAddr(program, memregion.addr + size - 1));
+			if (!loaded.isEmpty()) {
+				addUnloaded(plan, program, memregion, size, log);
+				continue;
+			}
+			if (i == 0 && ivtLength >= 8 && getOption(options, OPTION_STARTUP_DATA, true)) {
+				STM32StartupData data = findStartupData(program, memregion, size);
+				if (data != null) {
+					addStartupData(plan, memregion, size, data, log);
+					continue;
+				}
+			}
+			addRegion(plan, memregion.name, memregion.addr, size, memregion.read,
+				memregion.write, memregion.execute, false, log);
+		}
+		if (peripherals != null) {
+			STM32PeripheralTypes types =
+				structures ? new STM32PeripheralTypes(peripherals, program.getDataTypeManager())
+						: null;
+			boolean[] onBus = getOption(options, OPTION_COALESCE, false)
+					? addBusBlocks(plan, family, peripherals, log)
+					: new boolean[peripherals.getPeripheralCount()];
+			for (int p = 0; p < peripherals.getPeripheralCount(); p++) {
+				long base = peripherals.getPeripheralBase(p);
+				String name = peripherals.getPeripheralName(p);
+				if (onBus[p]) {
+					plan.addLabel(base, name, false);
+				}
+				else if (!addRegion(plan, name, base, peripherals.getPeripheralSize(p), true, true,
+					false, true, log)) {
+					continue;
+				}
+				if (types != null && types.getType(p) != null) {
+					plan.addData(base, types.getType(p));
+				}
+			}
+		}
+
+		if (ivtLength >= 4) {
 			// Top of stack is first value in memory, see page 59 of datasheet
 			// Make pointer, label it as stack start
-			int stackAddr = mem.getInt(api.toAddr(0x8000000));
-			Data stackAddrData = api.createDWord(api.toAddr(0x8000000));
-			api.createLabel(api.toAddr(stackAddr),"_STACK_BEGIN",true);
-			api.createMemoryReference(stackAddrData, api.toAddr(stackAddr), ghidra.program.model.symbol.RefType.DATA);
-			
-			// Mark the entry point of the binary, also referenced in the datasheet on page 59
-			
-			/*
-			int entryPoint = mem.getInt(api.toAddr(0x8000004));
-			Data entryPointData = api.createDWord(api.toAddr(0x8000004));
-			api.createDWord(api.toAddr(0x8000004));
-			api.createLabel(api.toAddr(entryPoint),"_ENTRY_POINT",true);
-			api.createMemoryReference(entryPointData, api.toAddr(entryPoint), ghidra.program.model.symbol.RefType.DATA);
-			*/
-			for(STM32InterruptVector vector: STM32IVT) {
-				int ptrVal = mem.getInt(api.toAddr(0x8000000+vector.addr));
+			long stackAddr = STM32VectorTable.getWord(ivt, 0);
+			plan.addDword(FLASH_BASE);
+			plan.addLabel(stackAddr, "_STACK_BEGIN", true);
+			plan.addReference(FLASH_BASE, stackAddr);
+		}
+		// Handler address to function name, vectors sharing a handler get Default_Handler
+		Map<Long, String> handlers = new TreeMap<>();
+		for (STM32InterruptVector vector : STM32IVT) {
+			if (vector.armv7m && family.isCortexM0()) {
+				continue;
+			}
+			addVector(plan, ivt, ivtLength, vector.addr, vector.name, vector.name + "_Handler",
+				handlers);
+		}
+		if (peripherals != null) {
+			for (int i = 0; i < peripherals.getTotalInterruptCount(); i++) {
+				String name = peripherals.getInterruptName(i);
+				addVector(plan, ivt, ivtLength, 0x40 + 4 * peripherals.getInterruptValue(i), name,
+					name + "_IRQHandler", handlers);
+			}
+		}
+		if (getOption(options, OPTION_CREATE_FUNCTIONS, true)) {
+			for (Map.Entry<Long, String> handler : handlers.entrySet()) {
+				plan.addLabel(handler.getKey(), handler.getValue(), true);
+				plan.addFunction(handler.getKey());
+			}
+		}
+		if (peripherals != null && !structures && !lazyLabels) {
+			for (int p = 0; p < peripherals.getPeripheralCount(); p++) {
+				long base = peripherals.getPeripheralBase(p);
+				int start = peripherals.getRegisterStart(p);
+				for (int r = start; r < start + peripherals.getRegisterCount(p); r++) {
+					plan.addLabel(base + peripherals.getRegisterOffset(r),
+						peripherals.getRegisterLabel(p, r), true);
+				}
+			}
+		}
+		return plan;
+	}
+
+	private static boolean addRegion(STM32LoadPlan plan, String name, long addr, long size,
+			boolean read, boolean write, boolean execute, boolean isVolatile, MessageLog log) {
+		if (!plan.addBlock(name, addr, size, read, write, execute, isVolatile)) {
+			log.appendMsg("Skipping overlapping region " + name);
+			return false;
+		}
+		plan.addLabel(addr, name, false);
+		return true;
+	}
+
+	/**
+	 * Add uninitialized blocks for the parts of a region that nothing was loaded into.
+	 */
+	private static void addUnloaded(STM32LoadPlan plan, Program program, MemRegion region,
+			long size, MessageLog log) {
+		AddressSet unloaded = new AddressSet(toAddr(program, region.addr),
+			toAddr(program, region.addr + size - 1)).subtract(program.getMemory());
+		int part = 1;
+		for (AddressRange range : unloaded) {
+			String name = region.name + "_" + part++;
+			if (!plan.addBlock(name, range.getMinAddress().getOffset(), range.getLength(),
+				region.read, region.write, region.execute)) {
+				log.appendMsg("Skipping overlapping region " + name);
+			}
+		}
+		plan.addLabel(region.addr, region.name, false);
+	}
+
+	/**
+	 * Add one volatile block per bus window, spanning the peripherals that lie inside it.
+	 *
+	 * @return which peripherals are covered by a bus block
+	 */
+	private static boolean[] addBusBlocks(STM32LoadPlan plan, STM32Family family,
+			STM32PeripheralDatabase peripherals, MessageLog log) {
+		boolean[] onBus = new boolean[peripherals.getPeripheralCount()];
+		for (MemRegion bus : family.getBuses()) {
+			long start = Long.MAX_VALUE;
+			long end = 0;
+			for (int p = 0; p < onBus.length; p++) {
+				long base = peripherals.getPeripheralBase(p);
+				long top = base + peripherals.getPeripheralSize(p);
+				if (base >= bus.addr && top <= bus.addr + bus.size) {
+					start = Math.min(start, base);
+					end = Math.max(end, top);
+				}
+			}
+			if (end <= start) {
+				continue;
+			}
+			if (!plan.addBlock(bus.name, start, end - start, bus.read, bus.write, bus.execute,
+				true)) {
+				log.appendMsg("Skipping overlapping bus " + bus.name);
+				continue;
+			}
+			for (int p = 0; p < onBus.length; p++) {
+				long base = peripherals.getPeripheralBase(p);
+				onBus[p] |= base >= start && base < end;
+			}
+		}
+		return onBus;
+	}
+
+	/**
+	 * Find the .data and .bss ranges in the startup code the reset vector points to.
+	 *
+	 * @return the ranges, or null if the startup code wasn't recognized or they don't fit in
+	 * main SRAM
+	 */
+	private static STM32StartupData findStartupData(Program program, MemRegion sram,
+			long sramSize) {
+		byte[] ivt = new byte[8];
+		try {
+			if (program.getMemory().getBytes(toAddr(program, FLASH_BASE), ivt) < ivt.length) {
+				return null;
+			}
+		}
+		catch (MemoryAccessException e) {
+			return null;
+		}
+		long sramEnd = sram.addr + sramSize;
+		STM32StartupData data = STM32StartupData.find(program,
+			STM32VectorTable.getWord(ivt, 1) & ~1L, sram.addr, sramEnd,
+			STM32VectorTable.getWord(ivt, 0));
+		return data == null || data.ebss > sramEnd ? null : data;
+	}
+
+	private static boolean isSameStartupData(STM32StartupData a, STM32StartupData b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return a.sidata == b.sidata && a.sdata == b.sdata && a.edata == b.edata &&
+			a.sbss == b.sbss && a.ebss == b.ebss;
+	}
+
+	/**
+	 * Split main SRAM around the .data and .bss ranges of the startup code. .data shows its
+	 * initial values straight from flash and .bss reads as zero, so globals have their
+	 * values at reset without running the startup code.
+	 */
+	private static void addStartupData(STM32LoadPlan plan, MemRegion sram, long sramSize,
+			STM32StartupData data, MessageLog log) {
+		long sramEnd = sram.addr + sramSize;
+		String name = sram.name;
+		if (data.sdata > sram.addr) {
+			plan.addBlock(name, sram.addr, data.sdata - sram.addr, sram.read, sram.write,
+				sram.execute);
+			name = sram.name + ".top";
+		}
+		if (data.edata > data.sdata && plan.addByteMappedBlock(".data", data.sdata,
+			data.edata - data.sdata, data.sidata, sram.read, sram.write, sram.execute)) {
+			plan.addLabel(data.sidata, "_sidata", false);
+			log.appendMsg(String.format("Mapped .data 0x%x-0x%x from 0x%x", data.sdata,
+				data.edata, data.sidata));
+		}
+		// Padding between .data and .bss is never read, fold it into .bss
+		if (data.ebss > data.edata && plan.addZeroFilledBlock(".bss", data.edata,
+			data.ebss - data.edata, sram.read, sram.write, sram.execute)) {
+			log.appendMsg(String.format("Mapped .bss 0x%x-0x%x", data.sbss, data.ebss));
+		}
+		if (sramEnd > data.ebss) {
+			plan.addBlock(name, data.ebss, sramEnd - data.ebss, sram.read, sram.write,
+				sram.execute);
+		}
+	}
+
+	/**
+	 * Replace the main SRAM blocks laid out for the old .data and .bss ranges with blocks for
+	 * the new ones. The labels, data and incoming references in SRAM are put back afterwards,
+	 * so annotated globals survive the new layout.
+	 *
+	 * @param oldData the ranges the blocks were made for, or null for a single SRAM block
+	 * @param newData the ranges of the new image, or null for a single SRAM block
+	 * @return false if SRAM holds blocks the loader didn't make or they couldn't be replaced
+	 */
+	private static boolean remapStartupData(Program program, MemRegion sram, long sramSize,
+			STM32StartupData oldData, STM32StartupData newData, TaskMonitor monitor,
+			MessageLog log, STM32LoadMetrics metrics) throws CancelledException {
+		Memory mem = program.getMemory();
+		AddressSet range = new AddressSet(toAddr(program, sram.addr),
+			toAddr(program, sram.addr + sramSize - 1));
+		Set<String> names = Set.of(sram.name, sram.name + ".top", ".data", ".bss");
+		List<MemoryBlock> blocks = new ArrayList<>();
+		for (MemoryBlock block : mem.getBlocks()) {
+			if (!range.intersects(block.getStart(), block.getEnd())) {
+				continue;
+			}
+			if (!names.contains(block.getName()) || !range.contains(block.getStart()) ||
+				!range.contains(block.getEnd())) {
+				log.appendMsg("Block " + block.getName() + " was not laid out by the loader");
+				return false;
+			}
+			blocks.add(block);
+		}
+
+		SramContents contents = new SramContents(program, range, monitor);
+		try {
+			for (MemoryBlock block : blocks) {
+				mem.removeBlock(block, monitor);
+			}
+		}
+		catch (LockException e) {
+			log.appendMsg("Unable to remove the SRAM blocks: " + e.getMessage());
+			return false;
+		}
+		STM32LoadPlan plan = new STM32LoadPlan();
+		if (newData != null) {
+			addStartupData(plan, sram, sramSize, newData, log);
+		}
+		else {
+			plan.addBlock(sram.name, sram.addr, sramSize, sram.read, sram.write, sram.execute);
+		}
+		plan.apply(program, monitor, log, metrics);
+		if (!range.subtract(mem).isEmpty()) {
+			return false;
+		}
+		contents.restore(monitor, log);
+
+		if (oldData != null && (newData == null || newData.sidata != oldData.sidata)) {
+			Symbol symbol = program.getSymbolTable().getGlobalSymbol("_sidata",
+				toAddr(program, oldData.sidata));
+			if (symbol != null && symbol.getSource() == SourceType.IMPORTED) {
+				symbol.delete();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The labels, defined data and references from outside of a range of memory, saved so
+	 * they can be put back once the blocks of the range are replaced.
+	 */
+	private static class SramContents {
+
+		// Symbols are gone once their block is removed, so only their values are kept
+		private static class Label {
+			final Address addr;
+			final String name;
+			final Namespace namespace;
+			final SourceType source;
+			final boolean primary;
+
+			Label(Symbol symbol) {
+				addr = symbol.getAddress();
+				name = symbol.getName();
+				namespace = symbol.getParentNamespace();
+				source = symbol.getSource();
+				primary = symbol.isPrimary();
+			}
+		}
+
+		private final Program program;
+		private final List<Label> labels = new ArrayList<>();
+		private final List<Address> dataAddresses = new ArrayList<>();
+		private final List<DataType> dataTypes = new ArrayList<>();
+		private final List<Reference> references = new ArrayList<>();
+
+		SramContents(Program program, AddressSetView range, TaskMonitor monitor)
+				throws CancelledException {
+			this.program = program;
+			for (Symbol symbol : program.getSymbolTable().getSymbols(range, SymbolType.LABEL,
+				true)) {
+				monitor.checkCanceled();
+				if (symbol.getSource() != SourceType.DEFAULT) {
+					labels.add(new Label(symbol));
+				}
+			}
+			for (Data data : program.getListing().getDefinedData(range, true)) {
+				monitor.checkCanceled();
+				dataAddresses.add(data.getAddress());
+				dataTypes.add(data.getDataType());
+			}
+			ReferenceManager refManager = program.getReferenceManager();
+			for (Address to : refManager.getReferenceDestinationIterator(range, true)) {
+				monitor.checkCanceled();
+				for (Reference ref : refManager.getReferencesTo(to)) {
+					if (!range.contains(ref.getFromAddress())) {
+						references.add(ref);
+					}
+				}
+			}
+		}
+
+		void restore(TaskMonitor monitor, MessageLog log) throws CancelledException {
+			SymbolTable symbolTable = program.getSymbolTable();
+			for (Label label : labels) {
+				monitor.checkCanceled();
 				try {
-				Data ptrData = api.createDWord(api.toAddr(0x8000000+vector.addr));
-				api.createDWord(api.toAddr(0x8000000+vector.addr));
-				api.createLabel(api.toAddr(0x8000000+vector.addr),vector.name,true);
-				api.createMemoryReference(ptrData, api.toAddr(ptrVal), ghidra.program.model.symbol.RefType.DATA);
-				} catch(ghidra.util.exception.InvalidInputException e) {
-					// This is ugly, need to fix
+					Symbol symbol = symbolTable.createLabel(label.addr, label.name,
+						label.namespace, label.source);
+					if (label.primary && !symbol.isPrimary()) {
+						symbol.setPrimary();
+					}
+				}
+				catch (InvalidInputException e) {
+					log.appendMsg("Unable to restore label " + label.name + ": " +
+						e.getMessage());
+				}
+			}
+			Listing listing = program.getListing();
+			for (int i = 0; i < dataAddresses.size(); i++) {
+				monitor.checkCanceled();
+				try {
+					listing.createData(dataAddresses.get(i), dataTypes.get(i));
+				}
+				catch (CodeUnitInsertionException e) {
+					log.appendMsg("Unable to restore data at " + dataAddresses.get(i) + ": " +
+						e.getMessage());
+				}
+			}
+			ReferenceManager refManager = program.getReferenceManager();
+			for (Reference ref : references) {
+				monitor.checkCanceled();
+				if (refManager.getReference(ref.getFromAddress(), ref.getToAddress(),
+					ref.getOperandIndex()) == null) {
+					refManager.addMemoryReference(ref.getFromAddress(), ref.getToAddress(),
+						ref.getReferenceType(), ref.getSource(), ref.getOperandIndex());
+				}
+			}
+		}
+	}
+
+	private static void addVector(STM32LoadPlan plan, byte[] ivt, int ivtLength, int offset,
+			String name, String handlerName, Map<Long, String> handlers) {
+		if (offset + 4 > ivtLength) {
+			return;
+		}
+		long ptrVal = STM32VectorTable.getWord(ivt, offset / 4);
+		plan.addDword(FLASH_BASE + offset);
+		plan.addLabel(FLASH_BASE + offset, name, true);
+		if (!STM32VectorTable.isHandler(ptrVal)) {
+			plan.addReference(FLASH_BASE + offset, ptrVal);
+			return;
+		}
+		// Bit 0 only marks the handler as Thumb code, the function starts on the even address
+		long target = ptrVal & ~1L;
+		plan.addReference(FLASH_BASE + offset, target);
+		handlers.merge(target, handlerName, (a, b) -> "Default_Handler");
+	}
+
+	private static Address toAddr(Program program, long offset) {
+		return program.getAddressFactory().getDefaultAddressSpace().getAddress(offset);
+	}
+
+	/**
+	 * Resolve the "Device" option. "auto" guesses the part from the vector table, and if that
+	 * fails the loader falls back to the {@link STM32DeviceCatalog#DEFAULT_FAMILY}.
+	 */
+	private static STM32Device getDevice(ByteProvider provider, List<Option> options,
+			MessageLog log) throws IOException {
+		String name = getOption(options, OPTION_DEVICE, DEVICE_AUTO).trim();
+		STM32Device device = name.equalsIgnoreCase(DEVICE_AUTO) ? detectDevice(provider)
+				: STM32DeviceCatalog.find(name);
+		if (device == null) {
+			log.appendMsg("Unable to identify the device, using " +
+				STM32DeviceCatalog.DEFAULT_FAMILY);
+			device = STM32DeviceCatalog.find(STM32DeviceCatalog.DEFAULT_FAMILY);
+		}
+		return device;
+	}
+
+	private static STM32Device detectDevice(ByteProvider provider) throws IOException {
+		return STM32DeviceCatalog.detect(readVectorTable(provider));
+	}
+
+	/**
+	 * Read the vector table from the start of a raw image, or from the records for the flash
+	 * base in a HEX or S-record file.
+	 */
+	private static byte[] readVectorTable(ByteProvider provider) throws IOException {
+		if (STM32RecordFile.getFormat(provider) != null) {
+			byte[] ivt = STM32RecordFile.readStart(provider, FLASH_BASE,
+				STM32VectorTable.SNIFF_LENGTH);
+			return Arrays.copyOf(ivt, ivt.length & ~3);
+		}
+		long length = Math.min(provider.length(), STM32VectorTable.SNIFF_LENGTH) & ~3L;
+		return provider.readBytes(0, length);
+	}
+
+	/**
+	 * The records say where each byte goes and there is no erased flash in between them, so
+	 * the options that shape the flash block of a raw image are ignored. Say so rather than
+	 * leave a changed option silently without effect.
+	 */
+	private static void logRawImageOptions(List<Option> options, MessageLog log) {
+		List<String> ignored = new ArrayList<>();
+		if (!getOption(options, OPTION_FLASH_FILE_BYTES, true)) {
+			ignored.add(OPTION_FLASH_FILE_BYTES);
+		}
+		if (parseSize(getOption(options, OPTION_FLASH_SIZE, "0")) != 0) {
+			ignored.add(OPTION_FLASH_SIZE);
+		}
+		if (getOption(options, OPTION_SKIP_ERASED, false)) {
+			ignored.add(OPTION_SKIP_ERASED);
+		}
+		if (!ignored.isEmpty()) {
+			log.appendMsg("Ignoring " + String.join(", ", ignored) +
+				", only raw images use them");
+		}
+	}
+
+	/**
+	 * Create one initialized block per segment of a HEX or S-record file. Each block is
+	 * filled straight from the records, and named after the family region it lies in.
+	 *
+	 * @param region the only region the segments may be loaded into, or null for any
+	 */
+	private void loadRecords(STM32RecordFile records, MemRegion region, STM32Family family,
+			Program program, TaskMonitor monitor, MessageLog log, STM32LoadMetrics metrics)
+			throws CancelledException, IOException {
+		Memory mem = program.getMemory();
+		Map<String, Integer> names = new HashMap<>();
+		for (STM32RecordFile.Segment segment : records.getSegments()) {
+			monitor.checkCanceled();
+			MemRegion target = findRegion(family, segment.start, segment.getLength());
+			if (region != null && target != region) {
+				log.appendMsg(String.format("Skipping 0x%x-0x%x, outside %s", segment.start,
+					segment.end() - 1, region.name));
+				continue;
+			}
+			String name;
+			if (target != null) {
+				name = target.name;
+			}
+			else if (segment.start == FLASH_BASE) {
+				name = "Main Memory";
+			}
+			else if (segment.start > FLASH_BASE && segment.start < FLASH_BASE + FLASH_MAX_SIZE) {
+				name = String.format("Main Memory 0x%x", segment.start);
+			}
+			else {
+				name = String.format("Segment 0x%x", segment.start);
+			}
+			int count = names.merge(name, 1, Integer::sum);
+			if (count > 1) {
+				name += "_" + count;
+			}
+			try (InputStream in = records.getInputStream(segment)) {
+				MemoryBlock block = mem.createInitializedBlock(name,
+					toAddr(program, segment.start), in, segment.getLength(), monitor, false);
+				if (target != null) {
+					block.setRead(target.read);
+					block.setWrite(target.write);
+					block.setExecute(target.execute);
+				}
+				else {
+					block.setExecute(true);
+				}
+				metrics.count(STM32LoadMetrics.FLASH_BYTES, segment.getLength());
+				metrics.count(STM32LoadMetrics.BLOCKS, 1);
+			}
+			catch (LockException | MemoryConflictException | AddressOverflowException e) {
+				log.appendMsg(String.format("Unable to load 0x%x-0x%x: %s", segment.start,
+					segment.end() - 1, e.getMessage()));
+				metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+			}
+		}
+		log.appendMsg(String.format("Loaded %d segments from %s", records.getSegments().size(),
+			records.getFormat() == STM32RecordFile.Format.INTEL_HEX ? "Intel HEX" : "S-records"));
+	}
+
+	/**
+	 * Load the System Memory, OTP and Option Bytes dumps given as options into the regions
+	 * of the same name. A dump is either a raw image of the region or a record file.
+	 */
+	private void loadDumps(List<Option> options, STM32Family family, Program program,
+			TaskMonitor monitor, MessageLog log, STM32LoadMetrics metrics)
+			throws CancelledException {
+		for (String[] dump : DUMP_REGIONS) {
+			String path = getOption(options, dump[0], "").trim();
+			if (path.isEmpty()) {
+				continue;
+			}
+			MemRegion region = null;
+			for (MemRegion r : family.getRegions()) {
+				if (r.name.equals(dump[1])) {
+					region = r;
+				}
+			}
+			if (region == null) {
+				log.appendMsg(family + " has no " + dump[1] + ", ignoring " + path);
+				continue;
+			}
+			try (ByteProvider provider = new RandomAccessByteProvider(new File(path))) {
+				if (STM32RecordFile.getFormat(provider) != null) {
+					loadRecords(STM32RecordFile.open(provider, monitor), region, family, program,
+						monitor, log, metrics);
 					continue;
 				}
+				long length = provider.length();
+				if (length > region.size) {
+					log.appendMsg(String.format("%s is 0x%x bytes but %s is 0x%x, truncating",
+						path, length, region.name, region.size));
+					length = region.size;
+				}
+				try (InputStream in = provider.getInputStream(0)) {
+					MemoryBlock block = program.getMemory().createInitializedBlock(region.name,
+						toAddr(program, region.addr), in, length, monitor, false);
+					block.setRead(region.read);
+					block.setWrite(region.write);
+					block.setExecute(region.execute);
+				}
+				metrics.count(STM32LoadMetrics.BLOCKS, 1);
 			}
-			
-			for(RegLabel rlabel:USBHSRegs) {
-				api.createLabel(api.toAddr(rlabel.addr+0x40040000),rlabel.label,true);
+			catch (IOException | LockException | MemoryConflictException |
+					AddressOverflowException e) {
+				log.appendMsg("Unable to load " + path + " into " + region.name + ": " +
+					e.getMessage());
 			}
-			for(RegLabel rlabel:USBFSRegs) {
-				api.createLabel(api.toAddr(rlabel.addr+0x50000000),rlabel.label,true);
+		}
+	}
+
+	/**
+	 * @return the region of the family that holds {@code [start, start + length)}, or null
+	 */
+	private static MemRegion findRegion(STM32Family family, long start, long length) {
+		for (MemRegion region : family.getRegions()) {
+			if (start >= region.addr && start + length <= region.addr + region.size) {
+				return region;
 			}
-			
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
+		return null;
+	}
+
+	/**
+	 * Create the "Main Memory" flash block sized to the image. By default the provider is
+	 * registered once as {@link FileBytes} and the block is built on top of it, so the image
+	 * is never copied through an intermediate stream. If a larger flash size is declared, the
+	 * unprogrammed remainder is added as an uninitialized block.
+	 * <p>
+	 * When erased sectors are skipped, only the programmed runs of the image become initialized
+	 * blocks and the erased runs are left uninitialized.
+	 *
+	 * @return the number of image bytes loaded
+	 */
+	private long loadFlash(ByteProvider provider, List<Option> options, STM32Family family,
+			Program program, TaskMonitor monitor, MessageLog log, STM32LoadMetrics metrics)
+			throws CancelledException, IOException {
+		Memory mem = program.getMemory();
+		Address base = toAddr(program, FLASH_BASE);
+		long flashSize = parseSize(getOption(options, OPTION_FLASH_SIZE, "0"));
+		long length = provider.length();
+		if (flashSize > 0 && length > flashSize) {
+			log.appendMsg(String.format("Image is 0x%x bytes but flash size is 0x%x, truncating",
+				length, flashSize));
+			length = flashSize;
+		}
+
+		List<FlashRun> runs;
+		if (getOption(options, OPTION_SKIP_ERASED, false)) {
+			monitor.setMessage("Scanning for erased flash sectors...");
+			runs = family.getFlashLayout().findRuns(provider, length, monitor);
+		}
+		else {
+			runs = List.of(new FlashRun(0, length, false, 0));
+		}
+
+		try {
+			FileBytes fileBytes = null;
+			if (getOption(options, OPTION_FLASH_FILE_BYTES, true)) {
+				fileBytes = MemoryBlockUtils.createFileBytes(program, provider, monitor);
+			}
+			long skipped = 0;
+			for (FlashRun run : runs) {
+				Address start = base.add(run.offset);
+				if (run.erased) {
+					mem.createUninitializedBlock("Erased Flash S" + run.firstSector, start,
+						run.length, false);
+					skipped += run.length;
+					metrics.count(STM32LoadMetrics.ERASED_BYTES, run.length);
+				}
+				else {
+					String name = run.offset == 0 ? "Main Memory" : "Main Memory S" + run.firstSector;
+					if (fileBytes != null) {
+						mem.createInitializedBlock(name, start, fileBytes, run.offset, run.length,
+							false);
+					}
+					else {
+						try (InputStream inStream = provider.getInputStream(run.offset)) {
+							mem.createInitializedBlock(name, start, inStream, run.length, monitor,
+								false);
+						}
+					}
+					metrics.count(STM32LoadMetrics.FLASH_BYTES, run.length);
+				}
+				metrics.count(STM32LoadMetrics.BLOCKS, 1);
+			}
+			if (skipped > 0) {
+				log.appendMsg(String.format("Skipped 0x%x of 0x%x flash bytes in erased sectors",
+					skipped, length));
+			}
+			if (flashSize > length) {
+				mem.createUninitializedBlock("Unprogrammed Flash", base.add(length),
+					flashSize - length, false);
+				metrics.count(STM32LoadMetrics.BLOCKS, 1);
+			}
+		}
+		catch (LockException | MemoryConflictException | AddressOverflowException e) {
+			log.appendException(e);
+			metrics.count(STM32LoadMetrics.CONFLICTS, 1);
+		}
+		return length;
+	}
+
+	private static long parseSize(String value) {
+		value = value.trim();
+		return value.isEmpty() ? 0 : Long.decode(value);
+	}
+
+	/**
+	 * Remember the options the plan was built with in the program information.
+	 */
+	private static void recordPlanOptions(Program program, List<Option> options) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : PLAN_OPTIONS) {
+			Object value = getOption(options, name, null);
+			if (value != null) {
+				sb.append(name).append('=').append(value).append('\n');
+			}
+		}
+		program.getOptions(Program.PROGRAM_INFO).setString(PLAN_OPTIONS_PROPERTY, sb.toString());
+	}
+
+	/**
+	 * @return the options recorded by {@link #recordPlanOptions}, or null for a program
+	 * imported before they were recorded
+	 */
+	private static List<Option> getRecordedPlanOptions(Program program) {
+		String recorded =
+			program.getOptions(Program.PROGRAM_INFO).getString(PLAN_OPTIONS_PROPERTY, null);
+		if (recorded == null) {
+			return null;
+		}
+		List<Option> options = new ArrayList<>();
+		for (String line : recorded.split("\n")) {
+			int eq = line.indexOf('=');
+			if (eq > 0) {
+				options.add(
+					new Option(line.substring(0, eq), Boolean.valueOf(line.substring(eq + 1))));
+			}
+		}
+		return options;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T getOption(List<Option> options, String name, T defaultValue) {
+		if (options != null) {
+			for (Option option : options) {
+				if (option.getName().equals(name) && option.getValue() != null) {
+					return (T) option.getValue();
+				}
+			}
+		}
+		return defaultValue;
 	}
 
 	@Override
@@ -495,8 +1266,33 @@ public class stm32Loader extends AbstractLibrarySupportLoader {
 		List<Option> list =
 			super.getDefaultOptions(provider, loadSpec, domainObject, isLoadIntoProgram);
 
-		// TODO: If this loader has custom options, add them to 'list'
-		list.add(new Option("Option name goes here", "Default option value goes here"));
+		// Offer the detected part so it can be checked and corrected before the import
+		String device = DEVICE_AUTO;
+		try {
+			STM32Device detected = detectDevice(provider);
+			if (detected != null) {
+				device = detected.getPartNumber();
+			}
+		}
+		catch (IOException e) {
+			// Leave it to be detected again during the load
+		}
+		list.add(new Option(OPTION_DEVICE, device));
+		list.add(new Option(OPTION_FLASH_FILE_BYTES, true));
+		list.add(new Option(OPTION_FLASH_SIZE, "0"));
+		list.add(new Option(OPTION_SKIP_ERASED, false));
+		list.add(new Option(OPTION_SCAN_LITERALS, true));
+		list.add(new Option(OPTION_STRUCTURES, true));
+		list.add(new Option(OPTION_COALESCE, false));
+		list.add(new Option(OPTION_LAZY_LABELS, false));
+		list.add(new Option(OPTION_CREATE_FUNCTIONS, true));
+		list.add(new Option(OPTION_STARTUP_DATA, true));
+		list.add(new Option(OPTION_METRICS_FILE, ""));
+		list.add(new Option(OPTION_PLAN_CACHE, true));
+		list.add(new Option(OPTION_HAL_FUNCTIONS, false));
+		for (String[] dump : DUMP_REGIONS) {
+			list.add(new Option(dump[0], ""));
+		}
 
 		return list;
 	}
@@ -504,8 +1300,42 @@ public class stm32Loader extends AbstractLibrarySupportLoader {
 	@Override
 	public String validateOptions(ByteProvider provider, LoadSpec loadSpec, List<Option> options, Program program) {
 
-		// TODO: If this loader has custom options, validate them here.  Not all options require
-		// validation.
+		for (Option option : options) {
+			String name = option.getName();
+			if (name.equals(OPTION_FLASH_FILE_BYTES) || name.equals(OPTION_SKIP_ERASED) ||
+				name.equals(OPTION_SCAN_LITERALS) || name.equals(OPTION_STRUCTURES) ||
+				name.equals(OPTION_COALESCE) || name.equals(OPTION_LAZY_LABELS) ||
+				name.equals(OPTION_CREATE_FUNCTIONS) || name.equals(OPTION_STARTUP_DATA) ||
+				name.equals(OPTION_PLAN_CACHE) || name.equals(OPTION_HAL_FUNCTIONS)) {
+				if (!Boolean.class.isAssignableFrom(option.getValueClass())) {
+					return "Invalid type for option: " + name + " - " + option.getValueClass();
+				}
+			}
+			else if (name.equals(OPTION_DEVICE)) {
+				String device = String.valueOf(option.getValue()).trim();
+				if (!device.equalsIgnoreCase(DEVICE_AUTO) &&
+					STM32DeviceCatalog.find(device) == null) {
+					return "Unknown device " + device + ", use a part number, a family or " +
+						DEVICE_AUTO;
+				}
+			}
+			else if (name.equals(OPTION_METRICS_FILE) || name.equals(OPTION_SYSTEM_MEMORY_FILE) ||
+				name.equals(OPTION_OTP_FILE) || name.equals(OPTION_OPTION_BYTES_FILE)) {
+				if (!String.class.isAssignableFrom(option.getValueClass())) {
+					return "Invalid type for option: " + name + " - " + option.getValueClass();
+				}
+			}
+			else if (name.equals(OPTION_FLASH_SIZE)) {
+				try {
+					if (parseSize((String) option.getValue()) < 0) {
+						return name + " must not be negative";
+					}
+				}
+				catch (ClassCastException | NumberFormatException e) {
+					return "Invalid value for option: " + name + " - " + option.getValue();
+				}
+			}
+		}
 
 		return super.validateOptions(provider, loadSpec, options, program);
 	}
@@ -0,0 +1,148 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ghidra.util.ObjectStorageAdapter;
+
+public class STM32PeripheralAccessMapTest {
+
+	private static final long GPIOA_MODER = 0x40020000L;
+	private static final long GPIOA_ODR = 0x40020014L;
+	private static final long USART1_DR = 0x40011004L;
+	private static final long TIM2_CNT = 0x40000024L;
+
+	private static final long F1 = 0x08000200L;
+	private static final long F2 = 0x08000300L;
+	private static final long F3 = 0x08000400L;
+	private static final long F4 = 0x08000500L;
+	private static final long F5 = 0x08000600L;
+
+	@Test
+	public void testSaveRestore() {
+		STM32PeripheralAccessMap map = newMap();
+		STM32PeripheralAccessMap restored = saveRestore(map);
+		assertSameAccesses(map, restored);
+
+		assertArrayEquals(new long[] { TIM2_CNT, USART1_DR, GPIOA_MODER, GPIOA_ODR },
+			restored.getRegisters());
+		assertArrayEquals(new long[] { F1, F4 }, restored.getReaders(GPIOA_MODER));
+		assertArrayEquals(new long[] { F3 }, restored.getWriters(GPIOA_MODER));
+		assertArrayEquals(new long[] { F2 }, restored.getWriters(TIM2_CNT));
+	}
+
+	@Test
+	public void testSaveRestoreAfterRemove() {
+		STM32PeripheralAccessMap map = newMap();
+		map.remove(F2);
+		STM32PeripheralAccessMap restored = saveRestore(map);
+		assertSameAccesses(map, restored);
+
+		// The functions after F2 are renumbered by save and must keep their own accesses
+		assertArrayEquals(new long[] { USART1_DR, GPIOA_MODER, GPIOA_ODR },
+			restored.getRegisters());
+		assertArrayEquals(new long[] { F1 }, restored.getWriters(GPIOA_ODR));
+		assertArrayEquals(new long[0], restored.getReaders(GPIOA_ODR));
+		assertArrayEquals(new long[] { F3 }, restored.getReaders(USART1_DR));
+		assertArrayEquals(new long[] { GPIOA_MODER }, restored.getRegisters(F4, false));
+		assertArrayEquals(new long[0], restored.getRegisters(F2, false));
+		assertArrayEquals(new long[0], restored.getRegisters(F2, true));
+		assertArrayEquals(new long[0], restored.getWriters(TIM2_CNT));
+	}
+
+	@Test
+	public void testAddAfterRestore() {
+		STM32PeripheralAccessMap map = newMap();
+		map.remove(F2);
+		STM32PeripheralAccessMap restored = saveRestore(map);
+		restored.add(USART1_DR, F5, true, false);
+		restored.add(GPIOA_ODR, F3, false, true);
+
+		assertArrayEquals(new long[] { F3, F5 }, restored.getReaders(USART1_DR));
+		assertArrayEquals(new long[] { F1, F3 }, restored.getWriters(GPIOA_ODR));
+		assertArrayEquals(new long[] { F1, F4 }, restored.getReaders(GPIOA_MODER));
+		assertSameAccesses(restored, saveRestore(restored));
+	}
+
+	@Test
+	public void testSaveRestoreManyFunctions() {
+		// Enough functions for the bitsets to span several words
+		STM32PeripheralAccessMap map = new STM32PeripheralAccessMap("STM32F205RB test");
+		long[] functions = new long[200];
+		for (int i = 0; i < functions.length; i++) {
+			functions[i] = 0x08001000L + i * 0x40;
+			map.add(USART1_DR, functions[i], i % 2 == 0, i % 3 == 0);
+			if (i % 5 == 0) {
+				map.add(GPIOA_ODR, functions[i], true, true);
+			}
+		}
+		for (int i = 0; i < functions.length; i += 7) {
+			map.remove(functions[i]);
+		}
+		STM32PeripheralAccessMap restored = saveRestore(map);
+		assertSameAccesses(map, restored);
+		for (long function : functions) {
+			assertArrayEquals(map.getRegisters(function, false),
+				restored.getRegisters(function, false));
+			assertArrayEquals(map.getRegisters(function, true),
+				restored.getRegisters(function, true));
+		}
+	}
+
+	/**
+	 * F1 reads GPIOA_MODER and writes GPIOA_ODR, F2 reads and writes GPIOA_ODR, reads
+	 * USART1_DR and is the only one to write TIM2_CNT, F3 writes GPIOA_MODER and reads
+	 * USART1_DR, F4 reads GPIOA_MODER.
+	 */
+	private static STM32PeripheralAccessMap newMap() {
+		STM32PeripheralAccessMap map = new STM32PeripheralAccessMap("STM32F205RB test");
+		map.add(GPIOA_MODER, F1, true, false);
+		map.add(GPIOA_ODR, F1, false, true);
+		map.add(GPIOA_ODR, F2, true, true);
+		map.add(USART1_DR, F2, true, false);
+		map.add(TIM2_CNT, F2, false, true);
+		map.add(GPIOA_MODER, F3, false, true);
+		map.add(USART1_DR, F3, true, false);
+		map.add(GPIOA_MODER, F4, true, false);
+		return map;
+	}
+
+	private static STM32PeripheralAccessMap saveRestore(STM32PeripheralAccessMap map) {
+		ObjectStorageAdapter storage = new ObjectStorageAdapter();
+		map.save(storage);
+		STM32PeripheralAccessMap restored = new STM32PeripheralAccessMap();
+		restored.restore(storage);
+		return restored;
+	}
+
+	private static void assertSameAccesses(STM32PeripheralAccessMap expected,
+			STM32PeripheralAccessMap actual) {
+		assertArrayEquals(expected.getRegisters(), actual.getRegisters());
+		for (long register : new long[] { GPIOA_MODER, GPIOA_ODR, USART1_DR, TIM2_CNT }) {
+			assertArrayEquals(expected.getReaders(register), actual.getReaders(register));
+			assertArrayEquals(expected.getWriters(register), actual.getWriters(register));
+		}
+		for (long function : new long[] { F1, F2, F3, F4, F5 }) {
+			assertArrayEquals(expected.getRegisters(function, false),
+				actual.getRegisters(function, false));
+			assertArrayEquals(expected.getRegisters(function, true),
+				actual.getRegisters(function, true));
+		}
+	}
+}
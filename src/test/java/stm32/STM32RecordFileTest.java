@@ -0,0 +1,262 @@
+/* ###
+ * IP: GHIDRA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package stm32;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import ghidra.app.util.bin.ByteArrayProvider;
+import ghidra.app.util.bin.ByteProvider;
+import ghidra.util.task.TaskMonitor;
+
+public class STM32RecordFileTest {
+
+	@Test
+	public void testGetFormat() throws IOException {
+		assertEquals(STM32RecordFile.Format.INTEL_HEX,
+			STM32RecordFile.getFormat(provider(":00000001FF\n")));
+		assertEquals(STM32RecordFile.Format.SREC,
+			STM32RecordFile.getFormat(provider("S9030000FC\n")));
+		assertEquals(STM32RecordFile.Format.INTEL_HEX,
+			STM32RecordFile.getFormat(provider("\r\n  :00000001FF\n")));
+		assertNull(STM32RecordFile.getFormat(provider("\u0000\u0010\u0000 ")));
+		assertNull(STM32RecordFile.getFormat(provider(":")));
+	}
+
+	@Test
+	public void testHexExtendedLinearAddress() throws Exception {
+		byte[] data = bytes(0x20, 0);
+		String hex = hex(4, 0, 0x08, 0x00) + hex(0, 0x0000, Arrays.copyOfRange(data, 0, 16)) +
+			hex(0, 0x0010, Arrays.copyOfRange(data, 16, 32)) + hex(1, 0);
+		STM32RecordFile file = open(hex);
+		assertEquals(STM32RecordFile.Format.INTEL_HEX, file.getFormat());
+		List<STM32RecordFile.Segment> segments = file.getSegments();
+		assertEquals(1, segments.size());
+		assertEquals(0x08000000L, segments.get(0).start);
+		assertEquals(0x20, segments.get(0).getLength());
+		assertArrayEquals(data, read(file, segments.get(0)));
+	}
+
+	@Test
+	public void testHexExtendedSegmentAddress() throws Exception {
+		// 0x1000 << 4 + 0x0100
+		STM32RecordFile file = open(hex(2, 0, 0x10, 0x00) + hex(0, 0x0100, bytes(4, 7)) +
+			hex(1, 0));
+		assertEquals(0x10100L, file.getSegments().get(0).start);
+		assertArrayEquals(bytes(4, 7), read(file, file.getSegments().get(0)));
+	}
+
+	@Test
+	public void testHexStartAddress() throws Exception {
+		STM32RecordFile file = open(hex(0, 0, bytes(4, 0)) + hex(5, 0, 0x08, 0x00, 0x01, 0x89) +
+			hex(1, 0));
+		assertEquals(0x08000189L, file.getEntry());
+		assertEquals(-1, open(hex(0, 0, bytes(4, 0)) + hex(1, 0)).getEntry());
+	}
+
+	@Test
+	public void testSmallGapIsFilled() throws Exception {
+		int gap = STM32RecordFile.MAX_FILL;
+		String hex = hex(4, 0, 0x08, 0x00) + hex(0, 0, bytes(0x10, 1)) +
+			hex(0, 0x10 + gap, bytes(0x10, 2)) + hex(1, 0);
+		STM32RecordFile file = open(hex);
+		assertEquals(1, file.getSegments().size());
+		STM32RecordFile.Segment segment = file.getSegments().get(0);
+		assertEquals(0x20 + gap, segment.getLength());
+
+		byte[] expected = new byte[0x20 + gap];
+		Arrays.fill(expected, (byte) 0xFF);
+		System.arraycopy(bytes(0x10, 1), 0, expected, 0, 0x10);
+		System.arraycopy(bytes(0x10, 2), 0, expected, 0x10 + gap, 0x10);
+		assertArrayEquals(expected, read(file, segment));
+	}
+
+	@Test
+	public void testLargeGapStartsSegment() throws Exception {
+		int next = 0x10 + STM32RecordFile.MAX_FILL + 1;
+		STM32RecordFile file = open(hex(4, 0, 0x08, 0x00) + hex(0, 0, bytes(0x10, 1)) +
+			hex(0, next, bytes(0x10, 2)) + hex(1, 0));
+		List<STM32RecordFile.Segment> segments = file.getSegments();
+		assertEquals(2, segments.size());
+		assertEquals(0x08000000L + next, segments.get(1).start);
+		assertArrayEquals(bytes(0x10, 1), read(file, segments.get(0)));
+		assertArrayEquals(bytes(0x10, 2), read(file, segments.get(1)));
+	}
+
+	@Test
+	public void testRecordsAfterEndAreIgnored() throws Exception {
+		STM32RecordFile file = open(hex(0, 0, bytes(4, 0)) + hex(1, 0) + hex(0, 0x100,
+			bytes(4, 0)));
+		assertEquals(1, file.getSegments().size());
+		assertEquals(4, file.getSegments().get(0).getLength());
+	}
+
+	@Test
+	public void testCrLfLineEndings() throws Exception {
+		String hex = (hex(4, 0, 0x08, 0x00) + hex(0, 0, bytes(8, 3)) + hex(1, 0))
+				.replace("\n", "\r\n");
+		STM32RecordFile file = open(hex);
+		assertArrayEquals(bytes(8, 3), read(file, file.getSegments().get(0)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testHexBadChecksum() throws Exception {
+		String record = hex(0, 0, bytes(4, 0));
+		// Flip the last checksum digit
+		char last = record.charAt(record.length() - 2);
+		open(record.substring(0, record.length() - 2) + (last == '0' ? '1' : '0') + "\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void testHexBadLength() throws Exception {
+		open(":0500000001020304F2\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void testHexBadAddressRecord() throws Exception {
+		open(hex(4, 0, 0x08) + hex(1, 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void testHexUnknownRecordType() throws Exception {
+		open(hex(6, 0) + hex(1, 0));
+	}
+
+	@Test
+	public void testSrec() throws Exception {
+		byte[] data = bytes(0x20, 5);
+		String srec = srec(0, 0, 2, "hdr".getBytes(StandardCharsets.US_ASCII)) +
+			srec(3, 0x08000000L, 4, Arrays.copyOfRange(data, 0, 16)) +
+			srec(3, 0x08000010L, 4, Arrays.copyOfRange(data, 16, 32)) +
+			srec(7, 0x08000189L, 4, new byte[0]);
+		STM32RecordFile file = open(srec);
+		assertEquals(STM32RecordFile.Format.SREC, file.getFormat());
+		assertEquals(1, file.getSegments().size());
+		assertEquals(0x08000000L, file.getSegments().get(0).start);
+		assertEquals(0x08000189L, file.getEntry());
+		assertArrayEquals(data, read(file, file.getSegments().get(0)));
+	}
+
+	@Test
+	public void testSrecAddressSizes() throws Exception {
+		STM32RecordFile file = open(srec(1, 0x1234, 2, bytes(4, 1)) +
+			srec(2, 0x123456, 3, bytes(4, 2)) + srec(9, 0, 2, new byte[0]));
+		List<STM32RecordFile.Segment> segments = file.getSegments();
+		assertEquals(2, segments.size());
+		assertEquals(0x1234L, segments.get(0).start);
+		assertEquals(0x123456L, segments.get(1).start);
+	}
+
+	@Test(expected = IOException.class)
+	public void testSrecBadChecksum() throws Exception {
+		String record = srec(3, 0x08000000L, 4, bytes(4, 0));
+		char last = record.charAt(record.length() - 2);
+		open(record.substring(0, record.length() - 2) + (last == '0' ? '1' : '0') + "\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void testSrecUnknownRecordType() throws Exception {
+		open("S4030000FC\n");
+	}
+
+	@Test
+	public void testReadStart() throws Exception {
+		ByteProvider provider = provider(hex(4, 0, 0x08, 0x00) + hex(0, 0, bytes(0x10, 1)) +
+			hex(0, 0x20, bytes(0x10, 2)) + hex(1, 0));
+		assertArrayEquals(bytes(0x10, 1), STM32RecordFile.readStart(provider, 0x08000000L, 0x40));
+		assertArrayEquals(Arrays.copyOfRange(bytes(0x10, 1), 4, 8),
+			STM32RecordFile.readStart(provider, 0x08000004L, 4));
+		assertEquals(0, STM32RecordFile.readStart(provider, 0x20000000L, 4).length);
+		assertEquals(0, STM32RecordFile.readStart(provider("raw"), 0, 4).length);
+	}
+
+	private static STM32RecordFile open(String text) throws Exception {
+		return STM32RecordFile.open(provider(text), TaskMonitor.DUMMY);
+	}
+
+	private static ByteProvider provider(String text) {
+		return new ByteArrayProvider("test", text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static byte[] read(STM32RecordFile file, STM32RecordFile.Segment segment)
+			throws IOException {
+		try (InputStream in = file.getInputStream(segment)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[7];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (seed * 31 + i);
+		}
+		return bytes;
+	}
+
+	private static String hex(int type, int address, int... data) {
+		byte[] bytes = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			bytes[i] = (byte) data[i];
+		}
+		return hex(type, address, bytes);
+	}
+
+	/**
+	 * @return an Intel HEX record with its checksum
+	 */
+	private static String hex(int type, int address, byte[] data) {
+		StringBuilder sb = new StringBuilder(":");
+		int sum = data.length + (address >> 8 & 0xFF) + (address & 0xFF) + type;
+		sb.append(String.format("%02X%04X%02X", data.length, address & 0xFFFF, type));
+		for (byte b : data) {
+			sb.append(String.format("%02X", b & 0xFF));
+			sum += b & 0xFF;
+		}
+		return sb.append(String.format("%02X\n", -sum & 0xFF)).toString();
+	}
+
+	/**
+	 * @return an S-record with its checksum
+	 */
+	private static String srec(int kind, long address, int addressBytes, byte[] data) {
+		int count = addressBytes + data.length + 1;
+		StringBuilder sb = new StringBuilder("S").append(kind);
+		sb.append(String.format("%02X", count));
+		int sum = count;
+		for (int i = addressBytes - 1; i >= 0; i--) {
+			int b = (int) (address >> (8 * i)) & 0xFF;
+			sb.append(String.format("%02X", b));
+			sum += b;
+		}
+		for (byte b : data) {
+			sb.append(String.format("%02X", b & 0xFF));
+			sum += b & 0xFF;
+		}
+		return sb.append(String.format("%02X\n", ~sum & 0xFF)).toString();
+	}
+}